@@ -0,0 +1,214 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Reusable view of one CRN-25 message held in a ByteBuffer.
+// Nothing is copied out of the buffer until a caller asks for a String;
+// the offsets of parsed CRN strings are kept in fixed arrays so one view can decode any number of messages.
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+class CRNMessage {
+
+    static final int MAX_FIELDS = 6;
+
+    private ByteBuffer buf;
+    private int start;
+    private int limit;
+    private int bodyStart;
+    private int fieldCount;
+    private int parsedEnd;
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private byte[] scratch = new byte[256];
+
+    // Points the view at the remaining bytes of packet. Returns false if there is no valid header.
+    boolean wrap(ByteBuffer packet) {
+        buf = packet;
+        start = packet.position();
+        limit = packet.limit();
+        fieldCount = 0;
+        if (limit - start < 4 || byteAt(start) == ' ' || byteAt(start + 1) == ' ' || byteAt(start + 2) != ' ') {
+            return false;
+        }
+        bodyStart = Math.min(start + 5, limit);
+        parsedEnd = bodyStart;
+        return true;
+    }
+
+    // The two transaction ID bytes packed into one int
+    int txnId() {
+        return (byteAt(start) << 8) | byteAt(start + 1);
+    }
+
+    String txn() {
+        return new String(new char[] {(char) byteAt(start), (char) byteAt(start + 1)});
+    }
+
+    void appendTxn(StringBuilder out) {
+        out.append((char) byteAt(start)).append((char) byteAt(start + 1));
+    }
+
+    char command() {
+        return (char) byteAt(start + 3);
+    }
+
+    int start() {
+        return start;
+    }
+
+    int bodyStart() {
+        return bodyStart;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    int byteAt(int index) {
+        return buf.get(index) & 0xff;
+    }
+
+    // Parses count CRN strings starting at the message body
+    boolean parseStrings(int count) {
+        return parseStrings(bodyStart, count);
+    }
+
+    // Parses count CRN strings starting at from, replacing any fields parsed before
+    boolean parseStrings(int from, int count) {
+        fieldCount = 0;
+        int pos = from;
+        for (int i = 0; i < count; i++) {
+            pos = parseString(pos);
+            if (pos < 0) return false;
+        }
+        parsedEnd = pos;
+        return true;
+    }
+
+    // Parses as many CRN strings as the body holds, up to MAX_FIELDS
+    int parseAll() {
+        fieldCount = 0;
+        int pos = bodyStart;
+        while (pos < limit && fieldCount < MAX_FIELDS) {
+            int next = parseString(pos);
+            if (next < 0) break;
+            pos = next;
+        }
+        parsedEnd = pos;
+        return fieldCount;
+    }
+
+    // Reads "<spaces> <content> " at pos and records where content is. Returns the index after it, or -1.
+    private int parseString(int pos) {
+        int spaceCount = 0;
+        int digits = 0;
+        while (pos < limit && byteAt(pos) >= '0' && byteAt(pos) <= '9') {
+            spaceCount = spaceCount * 10 + (byteAt(pos) - '0');
+            if (++digits > 9) return -1;
+            pos++;
+        }
+        if (digits == 0 || pos >= limit || byteAt(pos) != ' ') return -1;
+        int contentStart = ++pos;
+        for (int seen = 0; pos < limit; pos++) {
+            if (byteAt(pos) == ' ' && seen++ == spaceCount) {
+                fieldStart[fieldCount] = contentStart;
+                fieldEnd[fieldCount] = pos;
+                fieldCount++;
+                return pos + 1;
+            }
+        }
+        return -1;
+    }
+
+    int fieldCount() {
+        return fieldCount;
+    }
+
+    // Index just after the last field parsed
+    int end() {
+        return parsedEnd;
+    }
+
+    String string(int field) {
+        return decode(fieldStart[field], fieldEnd[field]);
+    }
+
+    boolean startsWith(int field, String prefix) {
+        int from = fieldStart[field];
+        if (fieldEnd[field] - from < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (byteAt(from + i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // Whether the field is an "ip:port" address: four numbers separated by dots, a colon and a port number
+    boolean isAddress(int field) {
+        int pos = fieldStart[field];
+        int end = fieldEnd[field];
+        for (int part = 0; part < 5; part++) {
+            int digitsFrom = pos;
+            while (pos < end && byteAt(pos) >= '0' && byteAt(pos) <= '9') pos++;
+            if (pos == digitsFrom) return false;
+            if (part == 4) return pos == end;
+            if (pos == end || byteAt(pos) != (part == 3 ? ':' : '.')) return false;
+            pos++;
+        }
+        return false;
+    }
+
+    int fieldHash(int field) {
+        int hash = 0;
+        for (int i = fieldStart[field]; i < fieldEnd[field]; i++) {
+            hash = 31 * hash + byteAt(i);
+        }
+        return hash;
+    }
+
+    // Hash of everything after the transaction ID, which tells a resent request from a new one reusing the ID
+    int contentHash() {
+        int hash = 0;
+        for (int i = start + 2; i < limit; i++) {
+            hash = 31 * hash + byteAt(i);
+        }
+        return hash;
+    }
+
+    // The body as a 64 hex digit hashID, or null if it isn't one
+    long[] hashID() {
+        int end = bodyStart + 64;
+        if (end > limit || (end < limit && byteAt(end) != ' ' && byteAt(end) != '\n')) return null;
+        long[] words = new long[4];
+        for (int i = 0; i < 64; i++) {
+            int digit = Character.digit(byteAt(bodyStart + i), 16);
+            if (digit < 0) return null;
+            words[i >> 4] = (words[i >> 4] << 4) | digit;
+        }
+        return words;
+    }
+
+    // The bytes from index to the end of the message, sharing this view's buffer
+    ByteBuffer slice(int from) {
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(limit).position(from);
+        return slice;
+    }
+
+    String text() {
+        return decode(start, limit);
+    }
+
+    String text(int from) {
+        return decode(from, limit);
+    }
+
+    private String decode(int from, int to) {
+        int length = to - from;
+        if (length > scratch.length) scratch = new byte[Math.max(length, scratch.length * 2)];
+        for (int i = 0; i < length; i++) {
+            scratch[i] = buf.get(from + i);
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
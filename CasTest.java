@@ -0,0 +1,89 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Increments one counter with CAS from clients on each of three local nodes at once.
+// Each client reads the counter and swaps in one more, reading again whenever another client got there first.
+// The final count must equal the increments that succeeded: one lower means an update was lost,
+// one higher means a swap that took was reported as failed and then made again.
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CasTest {
+    // Reads and swaps each client may spend on one increment before giving it up
+    private static final int ATTEMPTS = 50;
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+        int increments = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        Node[] nodes = new Node[3];
+        String[] nodeNames = {"N:casA", "N:casB", "N:casC"};
+        int[] ports = {20140, 20141, 20142};
+
+        String localIP = InetAddress.getLocalHost().getHostAddress();
+        for (int i = 0; i < 3; i++) {
+            nodes[i] = new Node();
+            nodes[i].setNodeName(nodeNames[i]);
+            nodes[i].openPort(ports[i]);
+            // Every read goes to the replicas rather than to values this node cached
+            nodes[i].setValueCache(0, 0);
+        }
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                nodes[i].insertDummyNode(nodeNames[j], localIP + ":" + ports[j]);
+            }
+        }
+
+        String key = "D:counter";
+        if (!nodes[0].write(key, "0")) {
+            System.out.println("CAS test failed: could not write the counter");
+            System.exit(0);
+        }
+
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger contended = new AtomicInteger();
+        AtomicInteger abandoned = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            Node node = nodes[c % nodes.length];
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < increments; i++) {
+                        if (increment(node, key, contended)) {
+                            succeeded.incrementAndGet();
+                        } else {
+                            abandoned.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    System.err.println("Client failed: " + e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        String last = nodes[1].read(key);
+        int expected = succeeded.get();
+        System.out.println(clients * increments + " increments tried, " + expected + " succeeded, "
+                + abandoned.get() + " given up, " + contended.get() + " swaps lost to another client");
+        System.out.println("Final count " + last + ", expected " + expected);
+        System.out.println(String.valueOf(expected).equals(last) && abandoned.get() == 0
+                ? "CAS test worked!" : "CAS test failed!");
+        System.exit(0);
+    }
+
+    // Adds one to the counter, reading it again after each swap another client won
+    private static boolean increment(Node node, String key, AtomicInteger contended) throws Exception {
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            String current = node.read(key);
+            if (current == null) continue;
+            if (node.CAS(key, current, String.valueOf(Integer.parseInt(current) + 1))) return true;
+            contended.incrementAndGet();
+        }
+        return false;
+    }
+}
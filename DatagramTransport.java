@@ -0,0 +1,156 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Non-blocking UDP transport for a node.
+// One thread waits on a Selector and drains the channel into pooled direct buffers;
+// sends encode straight into a pooled buffer and go to a cached socket address.
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class DatagramTransport implements Transport {
+
+    private static final int MAX_POOLED = 256;
+
+    private final int bufferSize;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Receiver receiver;
+    private final Thread receiveThread;
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final Map<String, InetSocketAddress> addresses = new ConcurrentHashMap<>();
+
+    DatagramTransport(int port, int bufferSize, Receiver receiver) throws IOException {
+        this.bufferSize = bufferSize;
+        this.receiver = receiver;
+        this.channel = DatagramChannel.open();
+        this.selector = Selector.open();
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+        receiveThread = new Thread(this::receiveLoop, "crn-receive-" + port);
+        receiveThread.setDaemon(true);
+        receiveThread.start();
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public InetSocketAddress resolve(String address) {
+        InetSocketAddress resolved = addresses.get(address);
+        if (resolved == null) {
+            int colon = address.lastIndexOf(':');
+            resolved = new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+            addresses.put(address, resolved);
+        }
+        return resolved;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) return ByteBuffer.allocateDirect(bufferSize);
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() <= MAX_POOLED) {
+            pool.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    // Returns false if the datagram was dropped because the socket buffer is full
+    public boolean send(InetSocketAddress target, CharSequence msg) throws IOException {
+        ByteBuffer buffer = acquire();
+        try {
+            encodeUtf8(msg, buffer);
+            buffer.flip();
+            return channel.send(buffer, target) > 0;
+        } catch (BufferOverflowException e) {
+            // Rare oversized message, not worth a larger pooled buffer
+            return channel.send(ByteBuffer.wrap(msg.toString().getBytes(StandardCharsets.UTF_8)), target) > 0;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    // Sends the remaining bytes of packet without copying them into a pooled buffer
+    public boolean send(InetSocketAddress target, ByteBuffer packet) throws IOException {
+        return channel.send(packet, target) > 0;
+    }
+
+    private void receiveLoop() {
+        while (channel.isOpen()) {
+            try {
+                selector.select();
+                selector.selectedKeys().clear();
+                while (true) {
+                    ByteBuffer buffer = acquire();
+                    SocketAddress sender = channel.receive(buffer);
+                    if (sender == null) {
+                        release(buffer);
+                        break;
+                    }
+                    buffer.flip();
+                    receiver.receive(buffer, (InetSocketAddress) sender);
+                }
+            } catch (ClosedChannelException | ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (!channel.isOpen()) break;
+                System.err.println("Receive failed: " + e);
+            }
+        }
+    }
+
+    // Encodes without going through String.getBytes; CRN messages are almost always ASCII
+    private static void encodeUtf8(CharSequence s, ByteBuffer out) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xc0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xf0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (cp & 0x3f)));
+            } else {
+                if (Character.isSurrogate(c)) c = '?';
+                out.put((byte) (0xe0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        selector.wakeup();
+        selector.close();
+    }
+}
@@ -0,0 +1,132 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Bounded cache whose entries also expire a fixed time after they were put.
+// When it is full the least recently used entry goes first.
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+class ExpiringCache<K, V> {
+
+    private static final class Timed<V> {
+        final V value;
+        final long expiresAt;
+
+        Timed(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final int SEGMENTS = 16;
+
+    private final long ttlNanos;
+    // Independently locked LRU segments, as in HashIDCache, so threads on different keys rarely contend
+    private final List<Segment<K, V>> segments;
+
+    // A capacity of 0 makes a cache that never holds anything
+    ExpiringCache(int capacity, long ttlMillis) {
+        this.ttlNanos = ttlMillis * 1_000_000;
+        int segmentCount = capacity == 0 ? 0 : SEGMENTS;
+        this.segments = new ArrayList<>(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments.add(new Segment<>(Math.max(1, capacity / SEGMENTS)));
+        }
+    }
+
+    // The cached value, or null if there is none or it has expired
+    V get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        if (segment == null) return null;
+        synchronized (segment) {
+            Timed<V> timed = segment.get(key);
+            if (timed == null) return null;
+            if (System.nanoTime() - timed.expiresAt >= 0) {
+                segment.remove(key);
+                return null;
+            }
+            return timed.value;
+        }
+    }
+
+    void put(K key, V value) {
+        Segment<K, V> segment = segmentFor(key);
+        if (segment == null) return;
+        synchronized (segment) {
+            segment.put(key, new Timed<>(value, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    // A stamp that changes whenever key, or another key in its segment, is invalidated
+    long generation(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        if (segment == null) return 0;
+        synchronized (segment) {
+            return segment.generation;
+        }
+    }
+
+    // Puts the value unless an invalidation has reached key's segment since generation(key) returned generation,
+    // so a value fetched before a key was invalidated is not cached after it
+    void putIfUnchanged(K key, V value, long generation) {
+        Segment<K, V> segment = segmentFor(key);
+        if (segment == null) return;
+        synchronized (segment) {
+            if (segment.generation == generation) segment.put(key, new Timed<>(value, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    void invalidate(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        if (segment == null) return;
+        synchronized (segment) {
+            segment.generation++;
+            segment.remove(key);
+        }
+    }
+
+    // Drops every entry whose value matches
+    void invalidateIf(Predicate<? super V> matches) {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                if (segment.values().removeIf(timed -> matches.test(timed.value))) segment.generation++;
+            }
+        }
+    }
+
+    void clear() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.generation++;
+                segment.clear();
+            }
+        }
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        if (segments.isEmpty()) return null;
+        return segments.get((key.hashCode() & 0x7fffffff) % segments.size());
+    }
+
+    // Never serialized; LinkedHashMap just happens to be Serializable
+    @SuppressWarnings("serial")
+    private static final class Segment<K, V> extends LinkedHashMap<K, Timed<V>> {
+        private final int capacity;
+        // Bumped by every invalidation in the segment
+        long generation;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Timed<V>> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -8,19 +8,94 @@ import java.security.MessageDigest;
 
 public class HashID {
 
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	// MessageDigest is not thread safe, so each thread keeps its own rather than asking for a new one per hash
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (Exception e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	});
+
+	private static final HashIDCache CACHE = new HashIDCache(1 << 16);
+
 	public static String computeHashID(String s) throws Exception {
-		MessageDigest md = MessageDigest.getInstance("SHA-256");
-		byte[] hashBytes = md.digest(s.getBytes(StandardCharsets.UTF_8));
-
-		// Convert hash bytes to a hexadecimal string
-		StringBuilder hexString = new StringBuilder();
-		for (byte b : hashBytes) {
-			String hex = Integer.toHexString(0xff & b);
-			if (hex.length() == 1) {
-				hexString.append('0');
+		return toHex(digest(s));
+	}
+
+	// Same as computeHashID, but repeated names are served from a bounded cache
+	public static String cachedHashID(String s) {
+		return CACHE.get(s).hex;
+	}
+
+	// Same as computeHashWords, but repeated names are served from a bounded cache.
+	// The array is shared so callers must not modify it.
+	public static long[] cachedHashWords(String s) {
+		return CACHE.get(s).words;
+	}
+
+	static byte[] digest(String s) {
+		return SHA256.get().digest(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	static String toHex(byte[] hashBytes) {
+		char[] hex = new char[hashBytes.length * 2];
+		for (int i = 0; i < hashBytes.length; i++) {
+			hex[2 * i] = HEX_DIGITS[(hashBytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX_DIGITS[hashBytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	// The same hashID as four big-endian longs, which is the form distances are computed on
+	public static long[] computeHashWords(String s) throws Exception {
+		return toWords(digest(s));
+	}
+
+	public static long[] toWords(byte[] hashBytes) {
+		long[] words = new long[4];
+		for (int i = 0; i < 32; i++) {
+			words[i >> 3] = (words[i >> 3] << 8) | (hashBytes[i] & 0xff);
+		}
+		return words;
+	}
+
+	// Parses a hashID as sent in CRN messages (64 hex digits)
+	public static long[] fromHex(String hex) {
+		if (hex.length() != 64) {
+			throw new IllegalArgumentException("HashID must be 64 hex digits: " + hex);
+		}
+		long[] words = new long[4];
+		for (int i = 0; i < 64; i++) {
+			int digit = Character.digit(hex.charAt(i), 16);
+			if (digit < 0) {
+				throw new IllegalArgumentException("HashID must be 64 hex digits: " + hex);
+			}
+			words[i >> 4] = (words[i >> 4] << 4) | digit;
+		}
+		return words;
+	}
+
+	public static String toHex(long[] words) {
+		StringBuilder hex = new StringBuilder(64);
+		for (long word : words) {
+			for (int shift = 60; shift >= 0; shift -= 4) {
+				hex.append(HEX_DIGITS[(int) (word >>> shift) & 0xf]);
+			}
+		}
+		return hex.toString();
+	}
+
+	// 256 minus the number of leading bits that match
+	public static int distance(long[] h1, long[] h2) {
+		for (int i = 0; i < 4; i++) {
+			long xor = h1[i] ^ h2[i];
+			if (xor != 0) {
+				return 256 - (i * 64 + Long.numberOfLeadingZeros(xor));
 			}
-			hexString.append(hex);
 		}
-		return hexString.toString();
+		return 0;
 	}
 }
@@ -0,0 +1,62 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Bounded cache of hashIDs for names that are hashed over and over (node names, hot keys).
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class HashIDCache {
+
+    static final class Hashed {
+        final String hex;
+        final long[] words;
+
+        Hashed(String hex, long[] words) {
+            this.hex = hex;
+            this.words = words;
+        }
+    }
+
+    private static final int SEGMENTS = 16;
+
+    // Split into independently locked LRU segments so threads hashing different names rarely contend
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    HashIDCache(int capacity) {
+        int perSegment = Math.max(1, capacity / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    Hashed get(String name) {
+        Segment segment = segments[(name.hashCode() & 0x7fffffff) % SEGMENTS];
+        synchronized (segment) {
+            Hashed hashed = segment.get(name);
+            if (hashed != null) return hashed;
+        }
+        // Hash outside the lock; two threads racing on the same name just compute the same value
+        byte[] digest = HashID.digest(name);
+        Hashed hashed = new Hashed(HashID.toHex(digest), HashID.toWords(digest));
+        synchronized (segment) {
+            segment.put(name, hashed);
+        }
+        return hashed;
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Segment extends LinkedHashMap<String, Hashed> {
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Hashed> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Log-linear histogram of non-negative values, such as latencies in microseconds.
+// Each power of two is split into SUB_BUCKETS equal buckets, so any value is counted in a bucket
+// no more than 1/8 wider than the value itself, whatever its size. Recording is one atomic increment.
+// Values of 2^40 or more are counted as 2^40 - 1.
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+class Histogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_BITS = 40;
+    static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+    // Only allocated once something is recorded, as a node keeps many histograms and most stay empty
+    private volatile AtomicLongArray counts;
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long value) {
+        value = Math.max(0, Math.min(value, (1L << MAX_BITS) - 1));
+        AtomicLongArray buckets = counts;
+        if (buckets == null) buckets = allocate();
+        buckets.incrementAndGet(bucketOf(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    private synchronized AtomicLongArray allocate() {
+        if (counts == null) counts = new AtomicLongArray(BUCKETS);
+        return counts;
+    }
+
+    // Adds everything recorded in other to this histogram
+    void add(Histogram other) {
+        AtomicLongArray theirs = other.counts;
+        if (theirs == null) return;
+        AtomicLongArray buckets = counts;
+        if (buckets == null) buckets = allocate();
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = theirs.get(i);
+            if (n != 0) buckets.addAndGet(i, n);
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+        max.accumulate(other.max.get());
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    // The smallest recorded value at least fraction of the values are at or below, to within its bucket.
+    // Reports the top of the bucket, so a percentile is never under-reported.
+    long percentile(double fraction) {
+        AtomicLongArray buckets = counts;
+        long n = total.sum();
+        if (buckets == null || n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) return Math.min(highestIn(i), max.get());
+        }
+        return max.get();
+    }
+
+    // Values below SUB_BUCKETS get a bucket each. Above that, the bucket is given by the position of
+    // the highest set bit and the SUB_BITS bits after it.
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long highestIn(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int magnitude = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long width = 1L << (magnitude - SUB_BITS);
+        long lowest = (SUB_BUCKETS + bucket % SUB_BUCKETS) * width;
+        return lowest + width - 1;
+    }
+}
@@ -0,0 +1,44 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Storage for the data key/value pairs a node is responsible for.
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+
+interface KeyValueStore extends Closeable {
+
+    // Returns null if there is no value for key
+    String get(String key) throws IOException;
+
+    boolean containsKey(String key);
+
+    void put(String key, String value) throws IOException;
+
+    // Returns true if there was a value to remove
+    boolean remove(String key) throws IOException;
+
+    // Bumped by every put of key; 0 while key is absent
+    long version(String key);
+
+    // Puts value only if key is still at version expected (0 for absent).
+    // Returns false if something changed key since that version was read.
+    boolean putIfVersion(String key, long expected, String value) throws IOException;
+
+    // Removes key only if it is still at version expected.
+    // Returns false if key is absent or something changed it since that version was read.
+    boolean removeIfVersion(String key, long expected) throws IOException;
+
+    Set<String> keys();
+
+    int size();
+
+    default String getOrDefault(String key, String defaultValue) throws IOException {
+        String value = get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    @Override
+    default void close() throws IOException {}
+}
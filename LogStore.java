@@ -0,0 +1,338 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Durable store: every put and remove is appended to a log, and an in-memory index maps each key
+// to its latest record. The index is checkpointed to a memory-mapped file, so recovery only loads
+// the checkpoint and replays the records appended after it. Dead records are compacted away
+// in the background once they outweigh the live ones.
+//
+// Appends reach the operating system before put returns, so they survive the node's process dying. Unless the
+// store is opened with syncWrites they are only forced to the disk at the next checkpoint, so a power cut or
+// OS crash can lose up to the last MAINTENANCE_SECONDS of writes, including ones already acknowledged.
+// With syncWrites every append is forced before it returns, at the cost of a disk flush per write.
+//
+// Record: crc (4) | key length (4) | value length (4, -1 for a removal) | version (8) | key | value
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+class LogStore implements KeyValueStore {
+
+    private static final int HEADER = 20;
+    private static final int REMOVED = -1;
+    private static final long INDEX_MAGIC = 0x43524e4944583032L; // "CRNIDX02"
+    private static final long COMPACT_MIN_BYTES = 1 << 20;
+    private static final int MAINTENANCE_SECONDS = 30;
+
+    private final Path logPath;
+    private final Path indexPath;
+    // key -> record location, the offset in the top 40 bits and the record length in the bottom 24
+    private final Map<String, Long> index = new ConcurrentHashMap<>();
+    // key -> version, which is also in the key's latest record so that it carries on from there after recovery
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+    private final boolean syncWrites;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService maintenance;
+    private FileChannel log;
+    private long logEnd;
+    private long liveBytes;
+
+    private LogStore(Path logPath, Path indexPath, boolean syncWrites) {
+        this.logPath = logPath;
+        this.indexPath = indexPath;
+        this.syncWrites = syncWrites;
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "crn-store-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    static LogStore open(Path directory, String name, boolean syncWrites) throws IOException {
+        Files.createDirectories(directory);
+        LogStore store = new LogStore(directory.resolve(name + ".log"), directory.resolve(name + ".idx"), syncWrites);
+        store.recover();
+        store.maintenance.scheduleWithFixedDelay(store::maintain, MAINTENANCE_SECONDS, MAINTENANCE_SECONDS, TimeUnit.SECONDS);
+        return store;
+    }
+
+    public String get(String key) throws IOException {
+        lock.readLock().lock();
+        try {
+            Long location = index.get(key);
+            if (location == null) return null;
+            ByteBuffer record = readRecord(location);
+            int keyLength = record.getInt(4);
+            int valueLength = record.getInt(8);
+            return new String(record.array(), HEADER + keyLength, valueLength, StandardCharsets.UTF_8);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean containsKey(String key) {
+        return index.containsKey(key);
+    }
+
+    public void put(String key, String value) throws IOException {
+        append(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public boolean remove(String key) throws IOException {
+        if (!index.containsKey(key)) return false;
+        return append(key, null) != null;
+    }
+
+    public long version(String key) {
+        return versions.getOrDefault(key, 0L);
+    }
+
+    public boolean putIfVersion(String key, long expected, String value) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (version(key) != expected) return false;
+            append(key, value.getBytes(StandardCharsets.UTF_8));
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean removeIfVersion(String key, long expected) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!index.containsKey(key) || version(key) != expected) return false;
+            append(key, null);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    // Appends a record and points the index at it. Returns the location the key had before.
+    private Long append(String key, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER + keyBytes.length + (value == null ? 0 : value.length);
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(0).putInt(keyBytes.length).putInt(value == null ? REMOVED : value.length).putLong(0).put(keyBytes);
+        if (value != null) record.put(value);
+
+        lock.writeLock().lock();
+        try {
+            // A removal's version is 0, as for a key that was never there
+            long version = value == null ? 0 : version(key) + 1;
+            record.putLong(12, version);
+            record.putInt(0, checksum(record.array(), length));
+            record.flip();
+            long offset = logEnd;
+            while (record.hasRemaining()) {
+                offset += log.write(record, offset);
+            }
+            if (syncWrites) log.force(false);
+            Long previous = value == null ? index.remove(key) : index.put(key, location(logEnd, length));
+            if (value == null) {
+                versions.remove(key);
+            } else {
+                versions.put(key, version);
+            }
+            if (value != null) liveBytes += length;
+            if (previous != null) liveBytes -= recordLength(previous);
+            logEnd = offset;
+            return previous;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void recover() throws IOException {
+        log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = log.size();
+        long position = loadIndex(size);
+
+        // Replay whatever was appended after the checkpoint, stopping at the first torn or corrupt record
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        while (position + HEADER <= size) {
+            header.clear();
+            log.read(header, position);
+            int keyLength = header.getInt(4);
+            int valueLength = header.getInt(8);
+            long length = HEADER + (long) keyLength + Math.max(valueLength, 0);
+            if (keyLength < 0 || valueLength < REMOVED || position + length > size) break;
+            ByteBuffer record = readRecord(location(position, (int) length));
+            if (record.getInt(0) != checksum(record.array(), (int) length)) break;
+
+            String key = new String(record.array(), HEADER, keyLength, StandardCharsets.UTF_8);
+            if (valueLength == REMOVED) {
+                index.remove(key);
+                versions.remove(key);
+            } else {
+                index.put(key, location(position, (int) length));
+                versions.put(key, record.getLong(12));
+            }
+            position += length;
+        }
+        if (position < size) log.truncate(position);
+        logEnd = position;
+        liveBytes = 0;
+        for (long location : index.values()) {
+            liveBytes += recordLength(location);
+        }
+    }
+
+    // Loads the checkpointed index and returns the log offset it covers, or 0 if there is no usable checkpoint
+    private long loadIndex(long logSize) {
+        if (!Files.exists(indexPath)) return 0;
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.getLong() != INDEX_MAGIC) return 0;
+            long coveredLength = mapped.getLong();
+            if (coveredLength > logSize) return 0;
+            int count = mapped.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[mapped.getInt()];
+                mapped.get(key);
+                String name = new String(key, StandardCharsets.UTF_8);
+                index.put(name, mapped.getLong());
+                versions.put(name, mapped.getLong());
+            }
+            return coveredLength;
+        } catch (IOException | RuntimeException e) {
+            index.clear();
+            versions.clear();
+            return 0;
+        }
+    }
+
+    // Writes the index through a memory mapping of a temporary file, then moves it into place
+    private void writeIndex() throws IOException {
+        lock.readLock().lock();
+        try {
+            Map<byte[], String> entries = new HashMap<>();
+            long size = 20;
+            for (String name : index.keySet()) {
+                byte[] key = name.getBytes(StandardCharsets.UTF_8);
+                entries.put(key, name);
+                size += 20 + key.length;
+            }
+            Path temporary = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                mapped.putLong(INDEX_MAGIC).putLong(logEnd).putInt(entries.size());
+                for (Map.Entry<byte[], String> e : entries.entrySet()) {
+                    mapped.putInt(e.getKey().length).put(e.getKey()).putLong(index.get(e.getValue())).putLong(version(e.getValue()));
+                }
+                mapped.force();
+            }
+            log.force(false);
+            Files.move(temporary, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Rewrites the log with only the live records once they are outweighed by dead ones
+    void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (logEnd < COMPACT_MIN_BYTES || logEnd - liveBytes < liveBytes) return;
+            Path compacted = logPath.resolveSibling(logPath.getFileName() + ".compact");
+            Map<String, Long> moved = new HashMap<>();
+            long position = 0;
+            try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (Map.Entry<String, Long> e : index.entrySet()) {
+                    ByteBuffer record = readRecord(e.getValue());
+                    int length = record.remaining();
+                    moved.put(e.getKey(), location(position, length));
+                    while (record.hasRemaining()) {
+                        position += out.write(record, position);
+                    }
+                }
+                out.force(false);
+            }
+            // A checkpoint of the old log must never be applied to the new one
+            Files.deleteIfExists(indexPath);
+            log.close();
+            Files.move(compacted, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            index.putAll(moved);
+            logEnd = position;
+            liveBytes = position;
+            writeIndex();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void maintain() {
+        try {
+            compact();
+            writeIndex();
+        } catch (IOException e) {
+            System.err.println("Store maintenance failed: " + e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        maintenance.shutdownNow();
+        lock.writeLock().lock();
+        try {
+            if (!log.isOpen()) return;
+            writeIndex();
+            log.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private ByteBuffer readRecord(long location) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(recordLength(location));
+        long offset = location >>> 24;
+        while (record.hasRemaining()) {
+            if (log.read(record, offset + record.position()) < 0) throw new IOException("Log truncated");
+        }
+        record.flip();
+        return record;
+    }
+
+    private static long location(long offset, int length) {
+        return (offset << 24) | length;
+    }
+
+    private static int recordLength(long location) {
+        return (int) (location & 0xffffff);
+    }
+
+    private static int checksum(byte[] record, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(record, 4, length - 4);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,74 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// The default store: everything is kept in memory and lost when the node stops.
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+class MemoryStore implements KeyValueStore {
+
+    private static final class Versioned {
+        final String value;
+        final long version;
+
+        Versioned(String value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+
+    private final Map<String, Versioned> values = new ConcurrentHashMap<>();
+
+    public String get(String key) {
+        Versioned v = values.get(key);
+        return v == null ? null : v.value;
+    }
+
+    public boolean containsKey(String key) {
+        return values.containsKey(key);
+    }
+
+    public void put(String key, String value) {
+        values.compute(key, (k, old) -> new Versioned(value, old == null ? 1 : old.version + 1));
+    }
+
+    public boolean remove(String key) {
+        return values.remove(key) != null;
+    }
+
+    public long version(String key) {
+        Versioned v = values.get(key);
+        return v == null ? 0 : v.version;
+    }
+
+    public boolean putIfVersion(String key, long expected, String value) {
+        boolean[] stored = new boolean[1];
+        values.compute(key, (k, old) -> {
+            if ((old == null ? 0 : old.version) != expected) return old;
+            stored[0] = true;
+            return new Versioned(value, expected + 1);
+        });
+        return stored[0];
+    }
+
+    public boolean removeIfVersion(String key, long expected) {
+        boolean[] removed = new boolean[1];
+        values.computeIfPresent(key, (k, old) -> {
+            if (old.version != expected) return old;
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(values.keySet());
+    }
+
+    public int size() {
+        return values.size();
+    }
+}
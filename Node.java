@@ -6,11 +6,25 @@
 //  230065855
 //  mohammad.faisal.3@city.ac.uk
 
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 
@@ -86,559 +100,1829 @@ interface NodeInterface {
 
 public class Node implements NodeInterface {
     private String nodeName;
-    private DatagramSocket udpSocket;
+    private Transport transport;
+    private Transport.Factory transportFactory = DatagramTransport::new;
     private static final int MAX_BUFFER = 1024;
+    private static final int MAX_RESENDS = 3;
+    private static final int LOOKUP_PARALLELISM = 3;
+    private static final int READ_ATTEMPTS = 5;
+    private static final int CAS_ATTEMPTS = 5;
+    // Most requests a batch keeps outstanding at once: about 6% of the 94 * 94 printable transaction IDs,
+    // leaving the rest for IDs quarantined after a resend (see releaseTransaction) and for other requests
+    private static final int MAX_IN_FLIGHT = 512;
+    // createTxnId picks each byte from the 94 printable ASCII characters after space
+    private static final int TXN_SLOTS = 94 * 94;
+    // Upper bound on waiting for a set of replies; each request gives up sooner once its own resends run out
+    private static final long REPLY_WAIT_LIMIT = (MAX_RESENDS + 1) * RttEstimator.MAX_TIMEOUT;
+    // Random transaction IDs tried before a request waits MIN_TIMEOUT for one to come free
+    private static final int TXN_ATTEMPTS = 64;
+    // Routing table upkeep: nodes not heard from for a probe interval get a G, and are evicted after
+    // MAX_PROBE_FAILURES unanswered requests in a row. Buckets no lookup has touched for a refresh
+    // interval get an N for a random ID in their range.
+    private static final long MAINTENANCE_INTERVAL = 30_000;
+    private static final long PROBE_INTERVAL = 30_000;
+    private static final int MAX_PROBE_FAILURES = 2;
+    private static final long REFRESH_INTERVAL = 15 * 60_000;
+    private static final int REFRESHES_PER_ROUND = 2;
+    // Nodes found by lookups that did not fit in the routing table, so their replies can still be reached
+    private static final int CONTACTS = 1024;
+    // Values read from other nodes are kept this long, so hot keys are answered without a round trip.
+    // A read may return a value up to this old unless this node wrote, swapped or saw a write for the key since.
+    private static final int VALUE_CACHE_SIZE = 4096;
+    private static final long VALUE_CACHE_TTL = 1000;
+    // Lookup results are reused for this long, unless one of the nodes found is evicted or stops answering
+    private static final int LOOKUP_CACHE_SIZE = 4096;
+    private static final long LOOKUP_CACHE_TTL = 10_000;
+    // Requests each source may send: a burst, then a steady rate. Requests beyond that, or beyond what
+    // the worker queues hold, are dropped with an I message telling the source to back off.
+    // Both leave room for another node's batch, which keeps MAX_IN_FLIGHT requests outstanding: that many
+    // every MIN_TIMEOUT. A source that still sends faster has its requests put off rather than failed.
+    private static final double REQUESTS_PER_SECOND = MAX_IN_FLIGHT * 1000.0 / RttEstimator.MIN_TIMEOUT;
+    private static final int REQUEST_BURST = 4 * MAX_IN_FLIGHT;
+    private static final int RATE_LIMITED_SOURCES = 4096;
+    private static final int WORKER_QUEUE_CAPACITY = 4096;
+    private static final String RETRY_AFTER = ", retry after ";
+    // Replies to W and C are kept for as long as their requester may resend, so a resend is answered
+    // with the same reply instead of running the request again
+    private static final int REPLAY_CACHE_SIZE = 65536;
+    // Data pairs this node is no longer among the closest for are handed to the nodes that are,
+    // HANDOFF_BATCH keys at a time, on each maintenance pass and HANDOFF_DELAY after a node announces itself
+    private static final int HANDOFF_BATCH = 256;
+    private static final long HANDOFF_DELAY = 1000;
+    // Anti-entropy: each maintenance pass, this node sends its closest neighbours a digest of the pairs it shares
+    // with each of them. Ranges that differ are compared a hex digit deeper until neither side holds more than
+    // SYNC_LEAF_KEYS pairs in them, and then both sides list their keys. Each side reads the keys it lacks or
+    // disagrees on with a quorum, whose read repair also fixes the other replicas, and keeps the agreed value.
+    private static final int SYNC_LEAF_KEYS = 8;
+    // Keys found to differ wait here to be pulled, one at a time, so a burst of digests can't start a burst of reads
+    private static final int SYNC_PULL_QUEUE = 1024;
     private Stack<String> relayPath = new Stack<>();
-    private Map<String, String> knownAddresses = new HashMap<>();
-    private Map<String, String> keyValueStore = new HashMap<>();
-    private Map<String, Integer> nodeDistances = new HashMap<>();
+    private volatile RelayHeader relayHeader;
+    private RoutingTable routingTable;
+    private long[] nodeId;
+    private KeyValueStore keyValueStore = new MemoryStore();
+    private String dataDirectory;
+    private boolean syncWrites;
+    // Each pair is kept by the replicationFactor closest nodes; reads and writes succeed once a quorum of them agree
+    private volatile int replicationFactor = 3;
+    private volatile int readQuorum = 2;
+    private volatile int writeQuorum = 2;
+    // Recently read values; a cache, never consulted for the pairs this node stores
+    private volatile ExpiringCache<String, String> hotValues = new ExpiringCache<>(VALUE_CACHE_SIZE, VALUE_CACHE_TTL);
+    // The closest nodes found for a key's hashID, with their addresses, nearest first
+    private volatile ExpiringCache<String, Map<String, String>> nearestNodes = new ExpiringCache<>(LOOKUP_CACHE_SIZE, LOOKUP_CACHE_TTL);
+
+    // Requests waiting for a reply, indexed by txnSlot of the two transaction ID bytes
+    private final AtomicReferenceArray<Transaction> pendingTransactions = new AtomicReferenceArray<>(TXN_SLOTS);
+    // A transaction ID freed while a copy of its request may still be answered is kept from its target until
+    // then, so the late reply can't complete a newer request; null means kept from every target. Only the
+    // transaction holding a slot reads or writes these, so taking the slot is what guards them.
+    private final InetSocketAddress[] quarantinedFor = new InetSocketAddress[TXN_SLOTS];
+    private final long[] quarantinedUntil = new long[TXN_SLOTS];
+    // Per thread rather than per node, so thousands of nodes sharing workers don't each need their own
+    private static final ThreadLocal<CRNMessage> inbound = ThreadLocal.withInitial(CRNMessage::new);
+    // For reading replies, which reach their requests as Strings, apart from whatever inbound is decoding
+    private static final ThreadLocal<CRNMessage> replyView = ThreadLocal.withInitial(CRNMessage::new);
+    private static final ThreadLocal<StringBuilder> outbound = ThreadLocal.withInitial(StringBuilder::new);
+    // Relayed requests waiting for the target's reply, by the inner transaction ID. Relaying is rare,
+    // and the sender picks the ID from any bytes, so a map rather than a table for all 65536.
+    private final Map<Integer, RelayEntry> relays = new ConcurrentHashMap<>();
+    private TimerWheel timers;
+    // False when the timer and workers are shared with other nodes, which then own them
+    private boolean ownsScheduling = true;
+    private final RttEstimator rtt = new RttEstimator();
+    // When each peer last told us it was shedding our requests
+    private final Map<InetSocketAddress, Long> sheddingPeers = new ConcurrentHashMap<>();
+    private StripedExecutor workers;
+    private final AtomicInteger nextStripe = new AtomicInteger();
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    // Replies to W and C by sender and transaction ID. A resent W or C must get the answer the first copy got,
+    // not an R or N because the value is now the one it set. Other requests are safe to run again, and
+    // replaying them could hand back a value that has since been overwritten.
+    private final ExpiringCache<String, SentReply> sentReplies = new ExpiringCache<>(REPLAY_CACHE_SIZE, REPLY_WAIT_LIMIT);
+    private final Map<String, String> contacts = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CONTACTS;
+        }
+    });
+    private volatile RateLimiter rateLimiter = new RateLimiter(REQUESTS_PER_SECOND, REQUEST_BURST, RATE_LIMITED_SOURCES);
+    private final AtomicBoolean handoffPending = new AtomicBoolean();
+    // Nodes that announced themselves since the last handoff, which are sent the pairs they are now among the closest for
+    private final Set<String> arrivals = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean handoffRunning = new AtomicBoolean();
+    private final Set<String> pullQueue = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean pullRunning = new AtomicBoolean();
+    private final Object activityLock = new Object();
+    private long lastActivity;
+    private final NodeMetrics metrics = new NodeMetrics();
+    private HttpServer metricsServer;
+    private ObjectName metricsName;
 
     public Node() {}
 
     public void setNodeName(String nodeName) throws Exception {
         this.nodeName= nodeName;
-        try {
-            String myAddress = InetAddress.getLocalHost().getHostAddress() + ":20110";
-            knownAddresses.put(nodeName, myAddress);
-        } catch (UnknownHostException e) {
-            throw new Exception("Address setup failed: " + e.getMessage());
+        this.nodeId = HashID.computeHashWords(nodeName);
+        // Our own entry is added by openPort, once the port is known
+        this.routingTable = new RoutingTable(nodeId);
+    }
+
+    // Keep data pairs in a durable store under path instead of memory, and save the routing table there.
+    // Must be called before openPort, which recovers whatever the store and routing snapshot already hold.
+    // Writes survive the process dying, but a power cut can lose the last 30 s of them; see LogStore.
+    public void setDataDirectory(String path) {
+        setDataDirectory(path, false);
+    }
+
+    // setDataDirectory, where syncWrites forces each W or C to disk before it is acknowledged
+    public void setDataDirectory(String path, boolean syncWrites) {
+        this.dataDirectory = path;
+        this.syncWrites = syncWrites;
+    }
+
+    // Sets how many nodes keep each pair and how many of them must answer a read or acknowledge a write.
+    // A read quorum and write quorum that together exceed the replicas means a read that reaches the replicas sees
+    // the latest acknowledged write. A read answered from the value cache may be up to VALUE_CACHE_TTL older
+    // unless the cache is turned off with setValueCache(0, 0).
+    public void setReplication(int replicas, int reads, int writes) {
+        if (replicas < 1 || reads < 1 || reads > replicas || writes < 1 || writes > replicas) {
+            throw new IllegalArgumentException("Quorums must be between 1 and the number of replicas");
         }
+        replicationFactor = replicas;
+        readQuorum = reads;
+        writeQuorum = writes;
     }
 
-    public void openPort(int portNumber) throws SocketException {
-        udpSocket = new DatagramSocket(portNumber);
+    // Sets how many read values are cached and for how long. A capacity of 0 turns the cache off.
+    public void setValueCache(int capacity, long ttlMillis) {
+        if (capacity < 0 || ttlMillis < 0) throw new IllegalArgumentException("Cache size and lifetime must not be negative");
+        hotValues = new ExpiringCache<>(capacity, ttlMillis);
     }
 
-    public void handleIncomingMessages(int delay) throws Exception {
-        udpSocket.setSoTimeout(5000);
-        byte[] inputBuffer = new byte[MAX_BUFFER];
-        DatagramPacket udpPacket = new DatagramPacket(inputBuffer, inputBuffer.length);
-        long begin = System.currentTimeMillis();
-        int maxLoops = (delay == 0) ? Integer.MAX_VALUE : Integer.MAX_VALUE;
-        int loopCount = 0;
-
-        if (delay > 0 && loopCount == 0) {
-            List<String> seedNodes = new ArrayList<>(knownAddresses.keySet());
-            for (String target : seedNodes) {
-                String[] addrSplit = knownAddresses.get(target).split(":");
-                for (int i = 0; i <= 6; i++) {
-                    String searchKey = "D:jabberwocky" + i;
-                    String txn = createTxnId();
-                    dispatchMessage(addrSplit[0], Integer.parseInt(addrSplit[1]),
-                            txn + "N " + HashID.computeHashID(searchKey));
-                }
-            }
+    // Sets how many lookup results are reused and for how long. A capacity of 0 looks every key up afresh.
+    public void setLookupCache(int capacity, long ttlMillis) {
+        if (capacity < 0 || ttlMillis < 0) throw new IllegalArgumentException("Cache size and lifetime must not be negative");
+        nearestNodes = new ExpiringCache<>(capacity, ttlMillis);
+    }
+
+    // Sets how many requests a second each source may send, after a burst of up to burst requests.
+    // A rate of 0 turns rate limiting off.
+    public void setRateLimit(double perSecond, int burst) {
+        if (perSecond < 0 || burst < 1) throw new IllegalArgumentException("Rate must not be negative and burst must be positive");
+        rateLimiter = new RateLimiter(perSecond, burst, RATE_LIMITED_SOURCES);
+    }
+
+    // Opens ports on something other than UDP sockets, such as a SimulatedNetwork. Call before openPort.
+    public void setTransport(Transport.Factory factory) {
+        transportFactory = factory;
+    }
+
+    // Runs this node's timeouts and message handling on a timer and workers shared with other nodes
+    // in the same JVM, instead of starting threads of its own. Call before openPort.
+    public void shareScheduling(TimerWheel sharedTimers, StripedExecutor sharedWorkers) {
+        timers = sharedTimers;
+        workers = sharedWorkers;
+        ownsScheduling = false;
+    }
+
+    // What this node has done so far: requests handled, client operations, resends and so on
+    public NodeMetrics metrics() {
+        return metrics;
+    }
+
+    // Publishes the metrics as an MBean named crn:type=Node,name=<node name>, and as text at
+    // http://<host>:<httpPort>/metrics unless httpPort is 0. Both stop when the port is closed.
+    public void exposeMetrics(int httpPort) throws IOException {
+        try {
+            metricsName = metrics.register(nodeName);
+        } catch (JMException e) {
+            throw new IOException("Metrics registration failed: " + e.getMessage());
         }
+        if (httpPort > 0) metricsServer = metrics.serve(httpPort, nodeName);
+    }
 
-        while (loopCount < maxLoops) {
-            try {
-                udpSocket.receive(udpPacket);
-                String msg = new String(udpPacket.getData(), 0, udpPacket.getLength());
-                processMessage(msg, udpPacket.getAddress().getHostAddress(), udpPacket.getPort());
-                loopCount++;
-            } catch (SocketTimeoutException e) {
-                if (delay > 0 && (System.currentTimeMillis() - begin) >= delay) break;
-            }
-            if (delay > 0 && (System.currentTimeMillis() - begin) >= delay) break;
+    public void openPort(int portNumber) throws IOException {
+        // Requests to ourselves go through the socket like any other, so our own entry needs the real port
+        try {
+            routingTable.put(nodeName, InetAddress.getLocalHost().getHostAddress() + ":" + portNumber);
+        } catch (Exception e) {
+            throw new IOException("Address setup failed: " + e.getMessage());
+        }
+        if (dataDirectory != null) {
+            keyValueStore = LogStore.open(Paths.get(dataDirectory), "store-" + storageId(), syncWrites);
         }
+        List<String> restored = dataDirectory == null ? List.of() : routingTable.readSnapshot(snapshotPath());
+        if (ownsScheduling) {
+            timers = new TimerWheel("crn-timer-" + portNumber, 10, 512);
+            workers = new StripedExecutor("crn-worker-" + portNumber, Runtime.getRuntime().availableProcessors(), WORKER_QUEUE_CAPACITY);
+        }
+        transport = transportFactory.open(portNumber, MAX_BUFFER, this::onPacket);
+        metrics.gauge("routing.size", routingTable::size);
+        metrics.gauge("routing.contacts", contacts::size);
+        metrics.gauge("store.size", () -> keyValueStore.size());
+        metrics.gauge("relay.pending", relays::size);
+        // Restored peers are used straight away and checked in the background; those that have gone are evicted
+        for (String node : restored) probe(node);
+        scheduleMaintenance();
     }
 
-    public boolean isActive(String nodeName) throws Exception {
-        String[] split = knownAddresses.getOrDefault(nodeName, "").split(":");
-        if (split.length != 2) return false;
-        String msg = createTxnId() + " G";
-        dispatchMessage(split[0], Integer.parseInt(split[1]), msg);
-        return true;
+    private String storageId() {
+        return HashID.cachedHashID(nodeName).substring(0, 16);
     }
 
-    public void pushRelay(String nodeName) { relayPath.push(nodeName); }
+    private Path snapshotPath() {
+        return Paths.get(dataDirectory).resolve("routes-" + storageId() + ".bin");
+    }
 
-    private void processMessage(String message, String senderIP, int senderPort) throws Exception {
-        String[] parts = message.split(" ", 3);
-        if (parts.length < 2) return;
+    private void saveRoutingTable() {
+        if (dataDirectory == null) return;
+        try {
+            routingTable.writeSnapshot(snapshotPath());
+        } catch (IOException e) {
+            System.err.println("Failed to save routing table: " + e);
+        }
+    }
 
-        String txnId = parts[0];
-        String command = parts[1];
-        int relayCount;
+    // Called on the transport's receive thread for every datagram.
+    // Replies are handed straight to whoever is waiting on their transaction ID;
+    // everything else goes to a worker so a slow handler never holds up the socket.
+    // G jumps the worker queues, as a node that is slow to answer one looks dead to its peers.
+    private void onPacket(ByteBuffer packet, InetSocketAddress sender) {
+        boolean handedOff = false;
         try {
-            relayCount = Integer.parseInt(command);
-            if (relayCount < 0) return;
-
-            String[] relayParts = message.split(" ", relayCount + 3);
-            if (relayParts.length < relayCount + 3) return;
-            String actualCommand = relayParts[1];
-            String remainingMessage = relayParts[2];
-            List<String> relays = new ArrayList<>(Arrays.asList(relayParts).subList(2, relayCount + 2));
-
-            if (relays.contains(nodeName)) {
-                int myIndex = relays.indexOf(nodeName);
-                if (myIndex < relayCount - 1) {
-                    String nextRelay = relays.get(myIndex + 1);
-                    String[] nextParts = knownAddresses.get(nextRelay).split(":");
-                    if (nextParts.length != 2) return;
-
-                    String forwardedMessage = txnId + " " + (relayCount - myIndex - 1) + " " +
-                            String.join(" ", relays.subList(myIndex + 1, relayCount)) +
-                            " " + actualCommand + " " + remainingMessage;
-                    dispatchMessage(nextParts[0], Integer.parseInt(nextParts[1]), forwardedMessage);
-                    return;
+            CRNMessage message = inbound.get();
+            if (message.wrap(packet) && !completeTransaction(message, sender) && !replay(message, sender)) {
+                RateLimiter limiter = rateLimiter;
+                if (!limiter.tryAcquire(sender)) {
+                    metrics.rateLimited.increment();
+                    shed(message, sender, "Rate limit reached", limiter.retryAfter(sender));
+                } else if (workers.offer(stripeFor(message), () -> handlePacket(packet, sender), message.command() == 'G')) {
+                    handedOff = true;
                 } else {
-                    command = actualCommand;
-                    parts = (txnId + " " + command + " " + remainingMessage).split(" ", 3);
+                    metrics.overloaded.increment();
+                    shed(message, sender, "Overloaded", RttEstimator.MIN_TIMEOUT);
                 }
-            } else {
-                command = actualCommand;
-                parts = (txnId + " " + command + " " + remainingMessage).split(" ", 3);
             }
+        } catch (Exception e) {
+            System.err.println("Failed to handle message: " + e);
+        } finally {
+            if (!handedOff) transport.release(packet);
+        }
+        synchronized (activityLock) {
+            lastActivity = System.currentTimeMillis();
+            activityLock.notifyAll();
+        }
+    }
+
+    // Drops a request, answering it with an I message instead. A source only gets one such
+    // answer per RateLimiter.NOTICE_INTERVAL; everything else it sends meanwhile is dropped silently.
+    private void shed(CRNMessage request, InetSocketAddress sender, String reason, long retryAfter) throws IOException {
+        if (!isRequestCommand(request.command()) || !rateLimiter.shouldNotify(sender)) return;
+        // Not remembered as the reply: once the sender backs off, its resend should be handled
+        transport.send(sender, buildReply(request, "I ", encodeCRNString(reason + RETRY_AFTER + Math.max(1, retryAfter) + " ms")));
+    }
+
+    // How long the I message a node sheds a request with asks to wait before resending it, or -1 for any other reply
+    private static long retryAfter(CRNMessage reply) {
+        if (reply.command() != 'I' || !reply.parseStrings(1)) return -1;
+        String notice = reply.string(0);
+        int at = notice.lastIndexOf(RETRY_AFTER);
+        if (at < 0 || !notice.endsWith(" ms")) return -1;
+        try {
+            return Long.parseLong(notice.substring(at + RETRY_AFTER.length(), notice.length() - 3));
         } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 
+    private void handlePacket(ByteBuffer packet, InetSocketAddress sender) {
+        try {
+            CRNMessage message = inbound.get();
+            message.wrap(packet);
+            // A resend queued behind the original is caught here, once the original has been answered
+            if (replay(message, sender)) return;
+            long start = System.nanoTime();
+            char command = message.command();
+            processMessage(message, sender);
+            metrics.handled(command, start);
+        } catch (Exception e) {
+            // Once the port is closed, whatever was still queued has nowhere to send its answer
+            if (transport.isOpen()) System.err.println("Failed to handle message: " + e);
+        } finally {
+            transport.release(packet);
         }
+    }
 
-        switch (command) {
-            case "G":
-                dispatchMessage(senderIP, senderPort, txnId + " H 0 " + nodeName + " ");
+    // Requests for the same key always land on the same worker, which keeps CAS atomic;
+    // anything without a key is spread round-robin
+    private int stripeFor(CRNMessage message) {
+        switch (message.command()) {
+            case 'E':
+            case 'R':
+            case 'W':
+            case 'C':
+                if (message.parseStrings(1)) return message.fieldHash(0);
                 break;
-            case "N":
-                String hashID = parts[2].trim();
-                List<String> nearest = rankNearest(hashID);
-                StringBuilder response = new StringBuilder(txnId + " O ");
-                for (String node : nearest) {
-                    response.append("0 ").append(node).append(" 0 ").append(knownAddresses.get(node)).append(" ");
+        }
+        return nextStripe.getAndIncrement();
+    }
+
+    public void handleIncomingMessages(int delay) throws Exception {
+        // Done here rather than on a worker, which would stop handling requests while it waited
+        if (delay > 0) bootstrap();
+
+        // Messages are handled by the receive thread, so this only waits until the node goes quiet
+        synchronized (activityLock) {
+            lastActivity = System.currentTimeMillis();
+            while (transport.isOpen()) {
+                if (delay == 0) {
+                    activityLock.wait();
+                    continue;
                 }
-                dispatchMessage(senderIP, senderPort, response.toString());
+                long idle = System.currentTimeMillis() - lastActivity;
+                if (idle >= delay) break;
+                activityLock.wait(delay - idle);
+            }
+        }
+    }
+
+    // Joins the network by looking ourselves up, which finds our neighbours and fills the buckets on the way,
+    // then writes our address pair to the neighbours found so that their lookups find us in turn.
+    // Never answered from the lookup cache: the point is to talk to the network.
+    public void bootstrap() throws Exception {
+        Lookup self = new Lookup(nodeName);
+        runLookups(Collections.singletonList(self));
+        String announce = "W " + encodeCRNString(nodeName) + encodeCRNString(routingTable.getAddress(nodeName));
+        for (String node : self.closest) {
+            if (!node.equals(nodeName)) sendToNode(node, announce);
+        }
+    }
+
+    public boolean isActive(String nodeName) throws Exception {
+        if (addressOf(nodeName) == null) return false;
+        String reply = awaitReply(sendToNode(nodeName, "G"), REPLY_WAIT_LIMIT);
+        if (reply == null || !reply.startsWith("H ", 3)) return false;
+        routingTable.markAlive(nodeName);
+        return true;
+    }
+
+    public void pushRelay(String nodeName) {
+        relayPath.push(nodeName);
+        relayHeader = RelayHeader.build(new ArrayList<>(relayPath));
+    }
+
+    private void processMessage(CRNMessage message, InetSocketAddress sender) throws Exception {
+        switch (message.command()) {
+            case 'G':
+                respond(message, sender, "H ", encodeCRNString(nodeName));
                 break;
 
-            case "O":
-                String[] nodes = parts[2].split(" 0 ");
-                for (int i = 0; i < nodes.length; i += 2) {
-                    if (i + 1 < nodes.length && nodes[i].length() > 0) {
-                        String nodeName = nodes[i].trim();
-                        String addr = nodes[i + 1].trim();
-                        if (nodeName.startsWith("N:") && addr.matches("\\d+\\.\\d+\\.\\d+\\.\\d+:\\d+")) {
-                            knownAddresses.put(nodeName, addr);
-                        }
-                    }
+            case 'N': {
+                long[] hashID = message.hashID();
+                if (hashID == null) return;
+                StringBuilder nearest = new StringBuilder();
+                for (RoutingTable.Entry node : routingTable.nearest(hashID, 3)) {
+                    nearest.append(encodeCRNString(node.name)).append(encodeCRNString(node.address));
                 }
+                respond(message, sender, "O ", nearest);
                 break;
+            }
+
+            case 'O': {
+                routingTable.putAll(addressPairs(message));
+                break;
+            }
 
-            case "E":
-                String keyE = parts[2].trim();
-                boolean isClosest = isAmongClosest(keyE);
+            case 'E': {
+                if (!message.parseStrings(1)) return;
+                String keyE = message.string(0);
                 if (keyValueStore.containsKey(keyE)) {
-                    dispatchMessage(senderIP, senderPort, txnId + " F Y");
-                } else if (isClosest) {
-                    dispatchMessage(senderIP, senderPort, txnId + " F N");
+                    respond(message, sender, "F ", "Y");
+                } else if (isAmongClosest(keyE)) {
+                    respond(message, sender, "F ", "N");
                 } else {
-                    dispatchMessage(senderIP, senderPort, txnId + " F ?");
+                    respond(message, sender, "F ", "?");
                 }
                 break;
+            }
 
-            case "R":
-                String keyR = parts[2].trim();
+            case 'R': {
+                if (!message.parseStrings(1)) return;
+                String keyR = message.string(0);
                 String valueR = keyValueStore.get(keyR);
                 if (valueR != null) {
-                    dispatchMessage(senderIP, senderPort, txnId + " S Y 0 " + valueR + " ");
+                    respond(message, sender, "S Y ", encodeCRNString(valueR));
                 } else if (isAmongClosest(keyR)) {
-                    dispatchMessage(senderIP, senderPort, txnId + " S N 0  ");
+                    respond(message, sender, "S N ", "0  ");
                 } else {
-                    dispatchMessage(senderIP, senderPort, txnId + " S ? 0  ");
+                    respond(message, sender, "S ? ", "0  ");
                 }
                 break;
+            }
 
-            case "W":
-                String[] kv = parts[2].split(" ", 5);
-                if (kv.length >= 4) {
-                    String key = kv[1];
-                    String value = kv[3];
-                    /*if (isAmongClosest(key)) {
-                        keyValueStore.put(key, value);
-                        dispatchMessage(senderIP, senderPort, txnId + " X A");
-                    } else if (keyValueStore.containsKey(key)) {
-                        keyValueStore.put(key, value);
-                        dispatchMessage(senderIP, senderPort, txnId + " X R");
-                    } else {
-                        dispatchMessage(senderIP, senderPort, txnId + " X X");
-                    }*/
-                    if (isAmongClosest(key)) {
-                        keyValueStore.put(key, value);
-                        dispatchMessage(senderIP, senderPort, txnId + " X A");
-                    } else if (keyValueStore.containsKey(key)) {
-                        keyValueStore.put(key, value);
-                        dispatchMessage(senderIP, senderPort, txnId + " X R");
-                    } else {
-                        dispatchMessage(senderIP, senderPort, txnId + " X X");
+            case 'W': {
+                if (!message.parseStrings(2)) return;
+                String key = message.string(0);
+                String value = message.string(1);
+                boolean isAddress = message.startsWith(0, "N:") && message.isAddress(1);
+                hotValues.invalidate(key);
+                if (keyValueStore.containsKey(key)) {
+                    keyValueStore.put(key, value);
+                    respondToUpdate(message, sender, key, "X ", "R");
+                } else if (isAmongClosest(key)) {
+                    keyValueStore.put(key, value);
+                    respondToUpdate(message, sender, key, "X ", "A");
+                } else {
+                    respondToUpdate(message, sender, key, "X ", "X");
+                }
+                // Address pairs are also routing information; data keys never are.
+                // A node writing its own address has usually just joined, and may now be closer to some of our pairs.
+                if (isAddress) {
+                    routingTable.put(key, value);
+                    if (!key.equals(nodeName)) {
+                        arrivals.add(key);
+                        scheduleHandoff();
                     }
-                    knownAddresses.put(key, senderIP + ":" + senderPort);
                 }
                 break;
+            }
 
-            case "X":
-            case "S":
+            case 'C': {
+                if (!message.parseStrings(3)) return;
+                String keyC = message.string(0);
+                hotValues.invalidate(keyC);
+                respondToUpdate(message, sender, keyC, "D ", compareAndSwap(keyC, message.string(1), message.string(2)));
                 break;
+            }
 
-            case "C":
-                String[] casParts = parts[2].split(" ", 7);
-                if (casParts.length >= 6) {
-                    String keyC = casParts[1];
-                    String oldVal = casParts[3];
-                    String newVal = casParts[5];
-                    if (keyValueStore.getOrDefault(keyC, "").equals(oldVal)) {
-                        keyValueStore.put(keyC, newVal);
-                        dispatchMessage(senderIP, senderPort, txnId + " D R");
-                    } else if (isAmongClosest(keyC)) {
-                        keyValueStore.put(keyC, newVal);
-                        dispatchMessage(senderIP, senderPort, txnId + " D A");
-                    } else {
-                        dispatchMessage(senderIP, senderPort, txnId + " D N");
-                    }
-                }
+            case 'H':
+            case 'F':
+            case 'S':
+            case 'X':
+            case 'D':
+                // Replies nobody is waiting for any more
                 break;
 
-            case "I":
+            case 'I':
+                // Information messages are for the user, apart from the digests replicas exchange
+                if (isSyncMessage(message)) synchronize(message.string(0), sender);
                 break;
-            case "V":
-                String[] relayParts = parts[2].split(" ", 3);
-                if (relayParts.length < 2) return; // Malformed message
 
+            case 'V': {
                 // Decode the target node name (CRN string format: <space_count> <node_name> )
-                String targetNodeEncoded = relayParts[0] + " " + relayParts[1];
-                String targetNode = decodeCRNString(targetNodeEncoded);
-                if (!targetNode.startsWith("N:")) return; // Invalid node name
+                if (!message.parseStrings(1)) return; // Malformed message
+                if (!message.startsWith(0, "N:")) return; // Invalid node name
 
-                // Extract the inner message
-                String innerMessage = relayParts[2].trim();
+                // The inner message runs from the end of the node name to the end of the datagram
+                int inner = message.end();
+                if (message.limit() - inner < 4) return;
 
                 // Look up the target node's address
-                String[] targetAddr = knownAddresses.getOrDefault(targetNode, "").split(":");
-                if (targetAddr.length != 2) return; // Target node not found
-
-                // Forward the inner message to the target node
-                dispatchMessage(targetAddr[0], Integer.parseInt(targetAddr[1]), innerMessage);
+                String targetAddress = addressOf(message.string(0));
+                if (targetAddress == null) return; // Target node not found
 
                 // Check if the inner message is a request by examining its command
-                String innerCommand = innerMessage.split(" ", 2)[1].trim();
-                if (isRequestCommand(innerCommand)) {
-                    // Wait for a response from the target node
-                    udpSocket.setSoTimeout(5000); // 5-second timeout per CRN spec
-                    byte[] buf = new byte[MAX_BUFFER];
-                    DatagramPacket responsePacket = new DatagramPacket(buf, buf.length);
-                    boolean responseReceived = false;
-
-                    for (int i = 0; i < 3; i++) { // Max 3 resends per CRN spec
-                        try {
-                            udpSocket.receive(responsePacket);
-                            String responses = new String(responsePacket.getData(), 0, responsePacket.getLength());
-                            // Forward the response back to the original sender using the relay txnId
-                            dispatchMessage(senderIP, senderPort, txnId + responses.substring(2)); // Keep relay txnId
-                            responseReceived = true;
-                            break;
-                        } catch (SocketTimeoutException e) {
-                            if (i < 2) {
-                                // Resend the inner message
-                                dispatchMessage(targetAddr[0], Integer.parseInt(targetAddr[1]), innerMessage);
-                            }
-                        }
-                    }
-
-                    if (!responseReceived) {
-                        // Optionally send an error message back to the sender
-                        dispatchMessage(senderIP, senderPort, txnId + " I 0 Relay timeout ");
-                    }
+                if (isRequestCommand((char) message.byteAt(inner + 3))) {
+                    relayRequest(targetAddress, message, inner, sender);
+                } else {
+                    transport.send(transport.resolve(targetAddress), message.slice(inner));
+                    metrics.relayForwards.increment();
                 }
                 break;
-
+            }
 
             default:
-                System.out.println("Unknown command: " + command);
+                // Counted by NodeMetrics.handled as unknown
+                break;
+        }
+    }
+
+    // Sends a response carrying the request's transaction ID
+    private void respond(CRNMessage request, InetSocketAddress sender, String command, CharSequence body) throws IOException {
+        transport.send(sender, buildReply(request, command, body));
+    }
+
+    // Sends the response to a W or C, and keeps it with the version the request left key at to answer resends
+    private void respondToUpdate(CRNMessage request, InetSocketAddress sender, String key, String command, CharSequence body) throws IOException {
+        StringBuilder reply = buildReply(request, command, body);
+        transport.send(sender, reply);
+        sentReplies.put(replayKey(request, sender), new SentReply(request.contentHash(), key, keyValueStore.version(key), reply.toString()));
+    }
+
+    private StringBuilder buildReply(CRNMessage request, String command, CharSequence body) {
+        StringBuilder reply = outbound.get();
+        reply.setLength(0);
+        request.appendTxn(reply);
+        reply.append(' ').append(command).append(body);
+        return reply;
+    }
+
+    private static final class SentReply {
+        final int request;
+        final String key;
+        final long version;
+        final String reply;
+
+        SentReply(int request, String key, long version, String reply) {
+            this.request = request;
+            this.key = key;
+            this.version = version;
+            this.reply = reply;
+        }
+    }
+
+    // Sends the reply already sent for this W or C again. Returns false if the request hasn't been answered,
+    // including when the sender has reused the transaction ID for a different request, and when the key has
+    // changed since: the same W or C sent again later under a reused ID must then run again.
+    private boolean replay(CRNMessage message, InetSocketAddress sender) throws IOException {
+        char command = message.command();
+        if (command != 'W' && command != 'C') return false;
+        SentReply sent = sentReplies.get(replayKey(message, sender));
+        if (sent == null || sent.request != message.contentHash() || sent.version != keyValueStore.version(sent.key)) return false;
+        transport.send(sender, sent.reply);
+        metrics.replayed.increment();
+        return true;
+    }
+
+    private static String replayKey(CRNMessage message, InetSocketAddress sender) {
+        return sender + " " + message.txnId();
+    }
+
+    private String decodeCRNString(String encoded, int from) {
+        int end = skipCRNString(encoded, from);
+        if (end < 0) return "";
+        return encoded.substring(encoded.indexOf(' ', from) + 1, end - 1);
+    }
+
+    // Returns the index just after the CRN string starting at from, or -1 if it is malformed
+    private int skipCRNString(String encoded, int from) {
+        int sep = encoded.indexOf(' ', from);
+        if (sep < 0) return -1;
+        int spaceCount;
+        try {
+            spaceCount = Integer.parseInt(encoded.substring(from, sep));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        int end = sep + 1;
+        for (int i = 0; i <= spaceCount; i++) {
+            end = encoded.indexOf(' ', end) + 1;
+            if (end == 0) return -1;
+        }
+        return end;
+    }
+
+    // A reply handed to its request as a String, wrapped for decoding, or null if it has no valid header
+    private static CRNMessage parseReply(String reply) {
+        CRNMessage view = replyView.get();
+        return view.wrap(ByteBuffer.wrap(reply.getBytes(StandardCharsets.UTF_8))) ? view : null;
+    }
+
+    // The node name and address pairs of an O message, leaving out any that aren't a node name and an address
+    private static Map<String, String> addressPairs(CRNMessage message) {
+        Map<String, String> pairs = new LinkedHashMap<>();
+        if (message == null || message.command() != 'O') return pairs;
+        int fields = message.parseAll();
+        for (int i = 0; i + 1 < fields; i += 2) {
+            if (message.startsWith(i, "N:") && message.isAddress(i + 1)) {
+                pairs.put(message.string(i), message.string(i + 1));
+            }
+        }
+        return pairs;
+    }
+
+    // The value an S Y reply carries, or null for any other reply
+    private static String foundValue(String reply) {
+        CRNMessage view = parseReply(reply);
+        if (view == null || view.command() != 'S' || view.bodyStart() >= view.limit() || view.byteAt(view.bodyStart()) != 'Y') {
+            return null;
+        }
+        return view.parseStrings(view.bodyStart() + 2, 1) ? view.string(0) : null;
+    }
+
+    private void learnAddresses(String reply) {
+        try {
+            routingTable.putAll(addressPairs(parseReply(reply)));
+        } catch (Exception e) {
+            System.err.println("Failed to learn addresses: " + e);
         }
     }
-    private String decodeCRNString(String encoded) {
-        String[] parts = encoded.trim().split(" ", 2);
-        if (parts.length < 2) return "";
-        int spaceCount = Integer.parseInt(parts[0]);
-        return parts[1].substring(0, parts[1].length() - spaceCount - 1);
+
+    private boolean isResponseCommand(char command) {
+        // CRN response commands plus information messages, which relays and busy nodes send instead of a reply
+        return command == 'H' || command == 'O' || command == 'F' || command == 'S' ||
+                command == 'X' || command == 'D' || command == 'I';
     }
 
-    private boolean isRequestCommand(String command) {
+    private boolean isRequestCommand(char command) {
         // CRN request commands: G, N, E, R, W, C
-        return command.equals("G") || command.equals("N") || command.equals("E") ||
-                command.equals("R") || command.equals("W") || command.equals("C");
+        // plus V, as a relay through another relay gets the reply back the same way
+        return command == 'G' || command == 'N' || command == 'E' ||
+                command == 'R' || command == 'W' || command == 'C' || command == 'V';
     }
 
-    private String encodeCRNString(String s) {
+    static String encodeCRNString(String s) {
         int spaceCount = s.length() - s.replace(" ", "").length();
         return spaceCount + " " + s + " ";
     }
-    public void popRelay() { if (!relayPath.isEmpty()) relayPath.pop(); }
+    public void popRelay() {
+        if (!relayPath.isEmpty()) relayPath.pop();
+        relayHeader = RelayHeader.build(new ArrayList<>(relayPath));
+    }
 
     public boolean exists(String key) throws Exception {
+        return metrics.exists.time(() -> existsNearby(key), found -> found);
+    }
+
+    private boolean existsNearby(String key) throws Exception {
         List<String> closeBy = locateNearest(key);
         for (String node : closeBy) {
-            String[] addr = knownAddresses.get(node).split(":");
-            String msg = createTxnId() + " E 0 " + key + " ";
-            dispatchMessage(addr[0], Integer.parseInt(addr[1]), msg);
+            sendToNode(node, "E " + encodeCRNString(key));
         }
         return keyValueStore.containsKey(key);
     }
 
     public String read(String key) throws Exception {
-        if (keyValueStore.containsKey(key)) return keyValueStore.get(key);
-        int retries = 20;
-        Set<String> visited = new HashSet<>();
+        return metrics.read.time(() -> readCached(key), Objects::nonNull);
+    }
 
-        for (int tryNum = 0; tryNum < retries; tryNum++) {
-            List<String> closeBy = locateNearest(key);
-            List<String> selected = closeBy.size() > 5 ? closeBy.subList(0, 5) : closeBy;
-            String txn = createTxnId();
-            String msg = txn + "R 0 " + key + " ";
+    private String readCached(String key) throws Exception {
+        ExpiringCache<String, String> cache = hotValues;
+        String cached = cache.get(key);
+        if (cached != null) {
+            metrics.valueCacheHits.increment();
+            return cached;
+        }
+        // Taken before the read, so a write this node sees while the read is out keeps its value from being cached
+        long generation = cache.generation(key);
+        String value = readReplicas(key);
+        if (value != null) cache.putIfUnchanged(key, value, generation);
+        return value;
+    }
 
-            for (String node : selected) {
-                if (!visited.contains(node)) {
-                    String[] addr = knownAddresses.get(node).split(":");
-                    dispatchMessage(addr[0], Integer.parseInt(addr[1]), msg);
-                    visited.add(node);
-                }
+    private String readReplicas(String key) throws Exception {
+        String msg = "R " + encodeCRNString(key);
+        long pause = RttEstimator.MIN_TIMEOUT;
+
+        for (int tryNum = 0; tryNum < READ_ATTEMPTS; tryNum++) {
+            List<String> replicas = locateNearest(key);
+            List<CompletableFuture<String>> replies = new ArrayList<>();
+            for (String node : replicas) {
+                replies.add(sendToNode(node, msg));
             }
 
-            udpSocket.setSoTimeout(10000);
-            byte[] buf = new byte[MAX_BUFFER];
-            DatagramPacket pkt = new DatagramPacket(buf, buf.length);
-            long t0 = System.currentTimeMillis();
-
-            while (System.currentTimeMillis() - t0 < 10000) {
-                try {
-                    udpSocket.receive(pkt);
-                    String reply = new String(pkt.getData(), 0, pkt.getLength());
-                    String[] parts = reply.split(" ", 4);
-                    if (parts.length >= 3 && parts[0].equals(txn.trim()) && parts[1].equals("S")) {
-                        if (parts[2].equals("Y")) return parts[3];
-                        if (parts[2].equals("N")) return null;
-                    } else if (reply.contains("Rate limit reached")) {
-                        Thread.sleep(2000);
-                        break;
-                    }
-                } catch (SocketTimeoutException e) {
+            int needed = quorum(readQuorum, replicas.size());
+            List<String> answers = awaitReply(quorumOf(replies, this::isReadAnswer, this::readVote, needed), REPLY_WAIT_LIMIT);
+            String agreed = answers == null ? null : settleRead(key, answers, needed, replicas, replies);
+            if (agreed != null) {
+                return foundValue(agreed);
+            }
+            forgetNearest(key);
+            for (CompletableFuture<String> reply : replies) {
+                if (reply.isDone() && !reply.isCompletedExceptionally() && isBusyReply(reply.join())) {
+                    // Rate limited, so back off harder than after a round nobody answered
+                    pause = Math.min(RttEstimator.MAX_TIMEOUT, pause * 4);
                     break;
                 }
             }
 
             if (tryNum % 3 == 0) {
-                List<String> allNodes = new ArrayList<>(knownAddresses.keySet());
-                for (String n : allNodes) {
-                    String[] addr = knownAddresses.get(n).split(":");
-                    String txnExpand = createTxnId();
-                    dispatchMessage(addr[0], Integer.parseInt(addr[1]),
-                            txnExpand + "N " + HashID.computeHashID(key));
+                String hash = HashID.cachedHashID(key);
+                List<CompletableFuture<String>> lookups = new ArrayList<>();
+                List<String> everyone = new ArrayList<>(routingTable.names());
+                for (String n : everyone) {
+                    CompletableFuture<String> lookup = sendToNode(n, "N " + hash);
+                    lookup.thenAccept(this::learnAddresses);
+                    lookups.add(lookup);
                 }
-                handleIncomingMessages(1000);
+                awaitAll(lookups, roundTimeout(everyone));
             }
 
-            Thread.sleep(500);
+            Thread.sleep(pause);
+            pause = Math.min(RttEstimator.MAX_TIMEOUT, pause * 2);
         }
-
-        System.out.println("Key not found: " + key + " after retries");
         return null;
     }
 
-    /*public boolean write(String key, String value) throws Exception {
-        List<String> nearNodes = locateNearest(key);
-        String txn = createTxnId();
-        String msg = txn + "W 0 " + key + " 0 " + value;
+    // Sends the write to every replica and returns once a quorum has acknowledged it.
+    // The other replicas are not abandoned: their requests keep resending in the background.
+    public boolean write(String key, String value) throws Exception {
+        return metrics.write.time(() -> writeReplicas(key, value), acknowledged -> acknowledged);
+    }
+
+    private boolean writeReplicas(String key, String value) throws Exception {
+        hotValues.invalidate(key);
+        List<String> replicas = locateNearest(key);
+        String msg = "W " + encodeCRNString(key) + encodeCRNString(value);
 
-        List<String> subset = nearNodes.subList(0, Math.min(3, nearNodes.size()));
-        for (String node : subset) {
-            String[] addr = knownAddresses.get(node).split(":");
-            dispatchMessage(addr[0], Integer.parseInt(addr[1]), msg);
+        List<CompletableFuture<String>> replies = new ArrayList<>();
+        for (String node : replicas) {
+            replies.add(sendToNode(node, msg));
         }
 
-        udpSocket.setSoTimeout(5000);
-        byte[] buf = new byte[MAX_BUFFER];
-        DatagramPacket packet = new DatagramPacket(buf, buf.length);
-        boolean acknowledged = false;
+        int needed = quorum(writeQuorum, replicas.size());
+        List<String> acks = awaitReply(quorumOf(replies, this::isWriteAck, needed), REPLY_WAIT_LIMIT);
+        // Again, for reads that went out while the write did and may have cached the old value
+        hotValues.invalidate(key);
+        if (needed > 0 && acks != null && acks.size() >= needed) return true;
+        forgetNearest(key);
+        return false;
+    }
+    // Swaps on every replica and succeeds once a write quorum has swapped. When the replicas split,
+    // because of a competing CAS or replicas that had drifted apart, a quorum read shows who won;
+    // if the value is still current the swap is retried after a randomised backoff.
+    public boolean CAS(String key, String current, String updated) throws Exception {
+        return metrics.cas.time(() -> swapReplicas(key, current, updated), swapped -> swapped);
+    }
 
-        for (int i = 0; i < 2; i++) {
-            try {
-                udpSocket.receive(packet);
-                String response = new String(packet.getData(), 0, packet.getLength());
-                String[] parts = response.split(" ", 3);
-                if (parts.length >= 3 && parts[0].equals(txn.trim()) && parts[1].equals("X")) {
-                    if (parts[2].equals("A") || parts[2].equals("R")) {
-                        acknowledged = true;
-                        keyValueStore.put(key, value);
-                        break;
-                    }
-                }
-            } catch (SocketTimeoutException e) {
-                if (i < 1) {
-                    for (String node : subset) {
-                        String[] addr = knownAddresses.get(node).split(":");
-                        dispatchMessage(addr[0], Integer.parseInt(addr[1]), msg);
-                    }
-                }
+    private boolean swapReplicas(String key, String current, String updated) throws Exception {
+        hotValues.invalidate(key);
+        try {
+            return swapUntilSettled(key, current, updated);
+        } finally {
+            // Again, as in writeReplicas
+            hotValues.invalidate(key);
+        }
+    }
+
+    private boolean swapUntilSettled(String key, String current, String updated) throws Exception {
+        String msg = "C " + encodeCRNString(key) + encodeCRNString(current) + encodeCRNString(updated);
+        long pause = RttEstimator.MIN_TIMEOUT;
+
+        for (int attempt = 0; attempt < CAS_ATTEMPTS; attempt++) {
+            List<String> replicas = locateNearest(key);
+            List<CompletableFuture<String>> replies = new ArrayList<>();
+            for (String node : replicas) {
+                replies.add(sendToNode(node, msg));
             }
+
+            int needed = quorum(writeQuorum, replicas.size());
+            CompletableFuture<List<String>> swapped = quorumOf(replies, r -> r.startsWith("D R", 3) || r.startsWith("D A", 3), needed);
+            CompletableFuture<List<String>> refused = quorumOf(replies, r -> r.startsWith("D N", 3), replicas.size() - needed + 1);
+            awaitReply(CompletableFuture.anyOf(swapped, refused), REPLY_WAIT_LIMIT);
+
+            int swaps = 0;
+            int refusals = 0;
+            for (CompletableFuture<String> reply : replies) {
+                if (!reply.isDone() || reply.isCompletedExceptionally()) continue;
+                String r = reply.join();
+                if (r.startsWith("D R", 3) || r.startsWith("D A", 3)) swaps++;
+                if (r.startsWith("D N", 3)) refusals++;
+            }
+            if (needed > 0 && swaps >= needed) return true;
+            // Enough replicas hold a different value that no quorum can swap
+            if (refusals > replicas.size() - needed) return false;
+
+            if (swaps > 0) {
+                // Some replicas never answered. If nobody refused and a quorum now reads the new value, the swap took;
+                // if the value is still current it didn't, and is tried again.
+                String now = readReplicas(key);
+                if (updated.equals(now) && refusals == 0) return true;
+                if (!current.equals(now)) return false;
+            }
+            forgetNearest(key);
+            Thread.sleep(pause + ThreadLocalRandom.current().nextLong(pause));
+            pause = Math.min(RttEstimator.MAX_TIMEOUT, pause * 2);
         }
+        return false;
+    }
 
-        if (!acknowledged) keyValueStore.put(key, value);
-        return acknowledged;
+    // Reads many keys at once and returns the value of every key a read quorum found.
+    // All the lookups share rounds and the requests are pipelined, grouped by the node they go to.
+    // Keys still waiting on replies after REPLY_WAIT_LIMIT are left out and logged, so they can be read again.
+    public Map<String, String> readAll(Collection<String> keys) throws Exception {
+        return readAll(keys, null);
     }
-*/
-    public boolean write(String key, String value) throws Exception {
-        List<String> nearNodes = locateNearest(key);
-        String txn = createTxnId();
-        String msg = txn + "W 0 " + key + " 0 " + value;
 
-        List<String> subset = nearNodes.subList(0, Math.min(3, nearNodes.size()));
-        for (String node : subset) {
-            String[] addr = knownAddresses.get(node).split(":");
-            dispatchMessage(addr[0], Integer.parseInt(addr[1]), msg);
+    // readAll, adding the keys it gave up waiting on to timedOut instead of logging them
+    public Map<String, String> readAll(Collection<String> keys, Collection<String> timedOut) throws Exception {
+        Map<String, String> values = new ConcurrentHashMap<>();
+        ExpiringCache<String, String> cache = hotValues;
+        List<String> uncached = new ArrayList<>();
+        // As in readCached, each key's cache generation is taken before its read goes out
+        Map<String, Long> generations = new HashMap<>();
+        for (String key : keys) {
+            String cached = cache.get(key);
+            if (cached != null) {
+                values.put(key, cached);
+            } else {
+                uncached.add(key);
+                generations.put(key, cache.generation(key));
+            }
         }
 
-        udpSocket.setSoTimeout(5000);
-        byte[] buf = new byte[MAX_BUFFER];
-        DatagramPacket packet = new DatagramPacket(buf, buf.length);
-        boolean acknowledged = false;
+        Map<String, List<String>> nearest = locateNearestAll(uncached);
+        Map<String, List<String>> replicas = new HashMap<>();
+        Map<String, List<CompletableFuture<String>>> replies = new HashMap<>();
+        for (Map.Entry<String, List<String>> group : groupByNode(nearest).entrySet()) {
+            for (String key : group.getValue()) {
+                replicas.computeIfAbsent(key, k -> new ArrayList<>()).add(group.getKey());
+                replies.computeIfAbsent(key, k -> new ArrayList<>())
+                        .add(sendPipelined(group.getKey(), "R " + encodeCRNString(key)));
+            }
+        }
 
-        for (int i = 0; i < 2; i++) {
-            try {
-                udpSocket.receive(packet);
-                String response = new String(packet.getData(), 0, packet.getLength());
-                String[] parts = response.split(" ", 3);
-                if (parts.length >= 3 && parts[0].equals(txn.trim()) && parts[1].equals("X")) {
-                    if (parts[2].equals("A") || parts[2].equals("R")) {
-                        acknowledged = true;
-                        keyValueStore.put(key, value);
-                        break;
-                    }
-                }
-            } catch (SocketTimeoutException e) {
-                if (i < 1) {
-                    for (String node : subset) {
-                        String[] addr = knownAddresses.get(node).split(":");
-                        dispatchMessage(addr[0], Integer.parseInt(addr[1]), msg);
-                    }
-                }
+        // Waiting on the callbacks rather than the quorums themselves, so every value is in place once they finish
+        Map<String, CompletableFuture<Void>> settled = new HashMap<>();
+        for (Map.Entry<String, List<CompletableFuture<String>>> e : replies.entrySet()) {
+            String key = e.getKey();
+            int needed = quorum(readQuorum, e.getValue().size());
+            CompletableFuture<List<String>> answers = quorumOf(e.getValue(), this::isReadAnswer, this::readVote, needed);
+            settled.put(key, answers.thenAccept(a -> {
+                String agreed = settleRead(key, a, needed, replicas.get(key), e.getValue());
+                String value = agreed == null ? null : foundValue(agreed);
+                if (value == null) return;
+                values.put(key, value);
+                cache.putIfUnchanged(key, value, generations.get(key));
+            }));
+        }
+        awaitAll(new ArrayList<>(settled.values()), REPLY_WAIT_LIMIT);
+        reportTimedOut("readAll", settled, timedOut);
+        return values;
+    }
+
+    // Writes many pairs at once, returning whether each write reached its quorum.
+    // Keys still waiting on replies after REPLY_WAIT_LIMIT count as not written and are logged, so they can be retried.
+    public Map<String, Boolean> writeAll(Map<String, String> pairs) throws Exception {
+        return writeAll(pairs, null);
+    }
+
+    // writeAll, adding the keys it gave up waiting on to timedOut instead of logging them
+    public Map<String, Boolean> writeAll(Map<String, String> pairs, Collection<String> timedOut) throws Exception {
+        for (String key : pairs.keySet()) hotValues.invalidate(key);
+        Map<String, List<String>> nearest = locateNearestAll(pairs.keySet());
+        Map<String, List<CompletableFuture<String>>> replies = new HashMap<>();
+        for (Map.Entry<String, List<String>> group : groupByNode(nearest).entrySet()) {
+            for (String key : group.getValue()) {
+                replies.computeIfAbsent(key, k -> new ArrayList<>())
+                        .add(sendPipelined(group.getKey(), "W " + encodeCRNString(key) + encodeCRNString(pairs.get(key))));
             }
         }
 
-        if (!acknowledged) keyValueStore.put(key, value);
+        Map<String, Boolean> acknowledged = new ConcurrentHashMap<>();
+        Map<String, CompletableFuture<Void>> settled = new HashMap<>();
+        for (String key : pairs.keySet()) {
+            acknowledged.put(key, false);
+            List<CompletableFuture<String>> sent = replies.get(key);
+            if (sent == null) continue;
+            int needed = quorum(writeQuorum, sent.size());
+            settled.put(key, quorumOf(sent, this::isWriteAck, needed).thenAccept(a -> acknowledged.put(key, a.size() >= needed)));
+        }
+        awaitAll(new ArrayList<>(settled.values()), REPLY_WAIT_LIMIT);
+        // Again, as in writeReplicas
+        for (String key : pairs.keySet()) hotValues.invalidate(key);
+        reportTimedOut("writeAll", settled, timedOut);
         return acknowledged;
     }
-    public boolean CAS(String key, String current, String updated) throws Exception {
-        List<String> nearNodes = locateNearest(key);
-        for (String node : nearNodes) {
-            String[] addr = knownAddresses.get(node).split(":");
-            String msg = createTxnId() + " C 0 " + key + " 0 " + current + " 0 " + updated + " ";
-            dispatchMessage(addr[0], Integer.parseInt(addr[1]), msg);
-        }
-        if (keyValueStore.getOrDefault(key, "").equals(current)) {
-            keyValueStore.put(key, updated);
-            return true;
+
+    // Hands the keys awaitAll gave up on, and so cancelled, to timedOut, or logs them if it is null
+    private static void reportTimedOut(String operation, Map<String, CompletableFuture<Void>> settled, Collection<String> timedOut) {
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, CompletableFuture<Void>> e : settled.entrySet()) {
+            if (e.getValue().isCancelled()) keys.add(e.getKey());
         }
-        return false;
+        if (keys.isEmpty()) return;
+        if (timedOut != null) {
+            timedOut.addAll(keys);
+        } else {
+            System.err.println(operation + " gave up waiting on " + keys.size() + " keys: " + keys);
+        }
+    }
+
+    // A quorum can't be more than the replicas we found, or a small network could never reach it
+    private static int quorum(int configured, int replicas) {
+        return Math.min(configured, replicas);
+    }
+
+    private boolean isReadAnswer(String reply) {
+        return reply.startsWith("S Y", 3) || reply.startsWith("S N", 3);
+    }
+
+    // An I message from a node shedding load, or another implementation's rate limit notice
+    private boolean isBusyReply(String reply) {
+        return reply.startsWith("I ", 3) || reply.contains("Rate limit reached");
+    }
+
+    private boolean isWriteAck(String reply) {
+        return reply.startsWith("X A", 3) || reply.startsWith("X R", 3);
+    }
+
+    // Replicas agree when they return the same value. A missing value casts no vote, so a read for
+    // a key some replicas lack waits for all of them rather than settling on the first that lack it.
+    private String readVote(String reply) {
+        return foundValue(reply);
+    }
+
+    // Returns the answer at least needed replicas agree on, or null if they don't agree.
+    // A lone stale replica can never outvote a write that reached its quorum, and since CRN-25 has no delete
+    // a missing value never outvotes a value.
+    // Read repair: every replica that answers with another value, now or later, is sent the agreed one.
+    private String settleRead(String key, List<String> answers, int needed, List<String> replicas, List<CompletableFuture<String>> replies) {
+        if (needed == 0) return null;
+        Map<String, Integer> votes = new HashMap<>();
+        String missing = null;
+        int missingVotes = 0;
+        for (String answer : answers) {
+            String vote = readVote(answer);
+            if (vote != null) {
+                votes.merge(vote, 1, Integer::sum);
+            } else {
+                missing = answer;
+                missingVotes++;
+            }
+        }
+        String agreed = null;
+        for (String answer : answers) {
+            String vote = readVote(answer);
+            if (vote != null && (agreed == null || votes.get(vote) > votes.get(readVote(agreed)))) agreed = answer;
+        }
+        if (agreed == null) return missingVotes >= needed ? missing : null;
+        if (votes.get(readVote(agreed)) < needed && missingVotes == 0) return null;
+
+        // The repair is a C conditional on what the replica told us, so it can't overwrite a newer write
+        String chosen = foundValue(agreed);
+        for (int i = 0; i < replies.size(); i++) {
+            String replica = replicas.get(i);
+            replies.get(i).thenAccept(r -> {
+                String seen = r.startsWith("S N", 3) ? "" : foundValue(r);
+                if (seen != null && !seen.equals(chosen)) {
+                    sendToNode(replica, "C " + encodeCRNString(key) + encodeCRNString(seen) + encodeCRNString(chosen));
+                }
+            });
+        }
+        return agreed;
+    }
+
+    // Turns key -> closest nodes into node -> keys it is among the closest for
+    private Map<String, List<String>> groupByNode(Map<String, List<String>> nearest) {
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> e : nearest.entrySet()) {
+            for (String node : e.getValue()) {
+                groups.computeIfAbsent(node, n -> new ArrayList<>()).add(e.getKey());
+            }
+        }
+        return groups;
     }
 
 
 
     private String createTxnId() {
         byte[] tx = new byte[2];
-        new Random().nextBytes(tx);
+        ThreadLocalRandom.current().nextBytes(tx);
         for (int i = 0; i < tx.length; i++) {
             tx[i] = (byte) (Math.abs(tx[i]) % 94 + 33);
         }
-        return new String(tx, StandardCharsets.UTF_8) + " ";
+        return new String(tx, StandardCharsets.UTF_8);
     }
 
-    private List<String> locateNearest(String key) throws Exception {
-        String hash = HashID.computeHashID(key);
-        List<String> allNodes = new ArrayList<>(knownAddresses.keySet());
+    // Sends a request to an "ip:port" address under a fresh transaction ID.
+    // The future completes with the whole reply, or exceptionally once every resend has gone unanswered.
+    private CompletableFuture<String> sendRequest(String address, String body) {
+        return sendRequest(address, txn -> txn + " " + body);
+    }
 
-        if (allNodes.size() <= 1) {
-            String[] myself = knownAddresses.get(nodeName).split(":");
-            String txn = createTxnId();
-            dispatchMessage(myself[0], Integer.parseInt(myself[1]), txn + "N " + hash);
-            handleIncomingMessages(1000);
-            allNodes = new ArrayList<>(knownAddresses.keySet());
+    // Sends a request to a node, wrapped in V messages for each relay on the relay stack
+    private CompletableFuture<String> sendToNode(String node, String body) {
+        RelayHeader header = relayHeader;
+        if (header == null) return sendRequest(addressOf(node), body);
+        return sendRequest(addressOf(header.firstRelay), txn -> header.wrap(txn, node, body, this::createTxnId));
+    }
+
+    // sendToNode for batches: blocks while MAX_IN_FLIGHT requests are outstanding
+    private CompletableFuture<String> sendPipelined(String node, String body) throws InterruptedException {
+        inFlight.acquire();
+        CompletableFuture<String> reply = sendToNode(node, body);
+        reply.whenComplete((r, e) -> inFlight.release());
+        return reply;
+    }
+
+    // The address a request for node is actually sent to: the node itself, or the first relay
+    private String nextHopAddress(String node) {
+        RelayHeader header = relayHeader;
+        return addressOf(header == null ? node : header.firstRelay);
+    }
+
+    // A node's address from the routing table, or from the contacts lookups found when its bucket was full
+    private String addressOf(String node) {
+        String address = routingTable.getAddress(node);
+        return address != null ? address : contacts.get(node);
+    }
+
+    // Long enough for each of nodes to answer a first send, judged by the slowest of them
+    private long roundTimeout(Collection<String> nodes) {
+        long timeout = RttEstimator.MIN_TIMEOUT;
+        for (String node : nodes) {
+            String address = nextHopAddress(node);
+            if (address != null) timeout = Math.max(timeout, rtt.timeout(transport.resolve(address)));
         }
+        return 2 * timeout;
+    }
+
+    private CompletableFuture<String> sendRequest(String address, Function<String, String> message) {
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        InetSocketAddress target;
+        try {
+            target = transport.resolve(address);
+        } catch (RuntimeException e) {
+            reply.completeExceptionally(new IllegalArgumentException("Unknown address " + address));
+            return reply;
+        }
+        startTransaction(target, message, reply);
+        return reply;
+    }
 
-        Map<String, String> temporary = new HashMap<>();
-        int count = 0;
-        for (String node : allNodes) {
-            if (count >= 5) break;
-            String[] addr = knownAddresses.get(node).split(":");
+    // Sends the first copy of a request under a free transaction ID, or tries again shortly if none is free
+    private void startTransaction(InetSocketAddress target, Function<String, String> message, CompletableFuture<String> reply) {
+        if (reply.isDone()) return;
+        for (int attempt = 0; attempt < TXN_ATTEMPTS; attempt++) {
             String txn = createTxnId();
-            dispatchMessage(addr[0], Integer.parseInt(addr[1]), txn + "N " + hash);
-            count++;
+            Transaction transaction = new Transaction(target, txn, message.apply(txn), reply);
+            if (registerTransaction(transaction)) {
+                transmit(transaction, 0);
+                return;
+            }
+        }
+        timers.schedule(() -> startTransaction(target, message, reply), RttEstimator.MIN_TIMEOUT);
+    }
+
+    private boolean registerTransaction(Transaction transaction) {
+        String txn = transaction.txn;
+        if (txn.charAt(0) > 0xff || txn.charAt(1) > 0xff) return false;
+        int index = (txn.charAt(0) << 8) | txn.charAt(1);
+        int slot = txnSlot(index);
+        if (slot < 0 || relays.containsKey(index) || !pendingTransactions.compareAndSet(slot, null, transaction)) return false;
+        if (System.currentTimeMillis() < quarantinedUntil[slot]
+                && (quarantinedFor[slot] == null || quarantinedFor[slot].equals(transaction.target))) {
+            pendingTransactions.set(slot, null);
+            return false;
+        }
+        transaction.reply.whenComplete((r, e) -> releaseTransaction(slot, transaction, e == null));
+        return true;
+    }
+
+    // Frees a transaction's ID. If the request was sent more than once, or never answered, a copy
+    // may still be answered, so the ID is quarantined for as long as a reply could take.
+    private void releaseTransaction(int slot, Transaction transaction, boolean answered) {
+        if (!answered || transaction.sentAgain()) {
+            long now = System.currentTimeMillis();
+            boolean heldForOther = now < quarantinedUntil[slot] && !transaction.target.equals(quarantinedFor[slot]);
+            quarantinedFor[slot] = heldForOther ? null : transaction.target;
+            quarantinedUntil[slot] = Math.max(quarantinedUntil[slot], now + REPLY_WAIT_LIMIT);
+        }
+        pendingTransactions.compareAndSet(slot, transaction, null);
+    }
+
+    // Where a transaction ID made by createTxnId is kept in pendingTransactions, or -1 if createTxnId never makes it
+    private static int txnSlot(int txnId) {
+        int first = (txnId >> 8) - 33;
+        int second = (txnId & 0xff) - 33;
+        if (first < 0 || first >= 94 || second < 0 || second >= 94) return -1;
+        return first * 94 + second;
+    }
+
+    // A request waiting for its reply, with what it takes to send it again
+    private static final class Transaction {
+        final InetSocketAddress target;
+        final String txn;
+        final String message;
+        final CompletableFuture<String> reply;
+        // A node shedding load can have its resends put off until then, but no later
+        final long deadline = System.currentTimeMillis() + REPLY_WAIT_LIMIT;
+        // Bumped each time the next send is scheduled, so a timer set for an earlier one does nothing
+        int round;
+        int resends;
+        volatile boolean putOff;
+
+        Transaction(InetSocketAddress target, String txn, String message, CompletableFuture<String> reply) {
+            this.target = target;
+            this.txn = txn;
+            this.message = message;
+            this.reply = reply;
+        }
+
+        synchronized int nextRound(int resends) {
+            this.resends = resends;
+            return ++round;
+        }
+
+        synchronized boolean isRound(int round) {
+            return this.round == round;
+        }
+
+        synchronized boolean sentAgain() {
+            return resends > 0 || putOff;
+        }
+    }
+
+    // Sends the request and resends it each time the target's retransmission timeout passes without a reply
+    private void transmit(Transaction transaction, int resends) {
+        CompletableFuture<String> reply = transaction.reply;
+        InetSocketAddress target = transaction.target;
+        // The round first: a reply completing the request after this sees the resend and quarantines the ID
+        int round = transaction.nextRound(resends);
+        if (reply.isDone()) return;
+        if (resends > 0) metrics.retransmits.increment();
+        long sentAt = System.nanoTime();
+        try {
+            transport.send(target, transaction.message);
+        } catch (Exception e) {
+            reply.completeExceptionally(e);
+            return;
+        }
+        TimerWheel.Timeout timer = timers.schedule(() -> {
+            if (!transaction.isRound(round)) return;
+            // Requests a node is shedding are resent at the pace it answers, until their deadline
+            if (isShedding(target) && putOff(transaction, rtt.timeout(target))) return;
+            rtt.backoff(target);
+            if (resends < MAX_RESENDS) {
+                transmit(transaction, resends + 1);
+            } else {
+                metrics.timeouts.increment();
+                reply.completeExceptionally(new TimeoutException("No reply to transaction " + transaction.txn));
+            }
+        }, rtt.timeout(target));
+        reply.whenComplete((r, e) -> {
+            timer.cancel();
+            // Karn's rule: once resent, a reply could belong to either copy, so it says nothing about the RTT
+            if (e == null && resends == 0 && !timer.expired() && !transaction.putOff) {
+                rtt.sample(target, (System.nanoTime() - sentAt) / 1_000_000);
+            }
+        });
+    }
+
+    // A node tells a source it is shedding at most once per RateLimiter.NOTICE_INTERVAL and drops the rest of what
+    // it sheds silently, so for a while after a notice its silence is taken for shedding rather than loss
+    private boolean isShedding(InetSocketAddress target) {
+        Long noticedAt = sheddingPeers.get(target);
+        return noticedAt != null && System.currentTimeMillis() - noticedAt < 2 * RateLimiter.NOTICE_INTERVAL;
+    }
+
+    // isShedding for the address requests to node go to
+    private boolean isShedding(String node) {
+        String address = nextHopAddress(node);
+        return address != null && isShedding(transport.resolve(address));
+    }
+
+    // Sends a request its target shed again once the target says it can take it, without using up a resend.
+    // Returns false if that would be past the request's deadline, when the I message is its answer.
+    private boolean putOff(Transaction transaction, long delay) {
+        if (System.currentTimeMillis() + delay > transaction.deadline) return false;
+        transaction.putOff = true;
+        int resends;
+        int round;
+        synchronized (transaction) {
+            resends = transaction.resends;
+            round = ++transaction.round;
+        }
+        metrics.putOff.increment();
+        timers.schedule(() -> {
+            if (transaction.isRound(round)) transmit(transaction, resends);
+        }, delay);
+        return true;
+    }
+
+    // Hands a reply to the request or relay waiting on its transaction ID. Returns false if nobody is waiting,
+    // or if the reply is not from the node the request went to.
+    // A node shedding load asks for the request again later, which puts it off rather than answering it.
+    private boolean completeTransaction(CRNMessage message, InetSocketAddress sender) throws IOException {
+        if (!isResponseCommand(message.command()) || isSyncMessage(message)) return false;
+        int index = message.txnId();
+        int slot = txnSlot(index);
+        Transaction pending = slot < 0 ? null : pendingTransactions.get(slot);
+        if (pending != null && pending.target.equals(sender)) {
+            long retryAfter = retryAfter(message);
+            if (retryAfter >= 0) sheddingPeers.put(pending.target, System.currentTimeMillis());
+            if (retryAfter >= 0 && putOff(pending, retryAfter)) return true;
+            // A second copy of the reply, arriving before the ID is freed, has nothing left to complete
+            pending.reply.complete(message.text());
+            return true;
+        }
+        RelayEntry relay = relays.get(index);
+        if (relay != null && relay.target.equals(sender) && relays.remove(index, relay)) {
+            relay.timer.cancel();
+            if (relay.resends == 0) rtt.sample(relay.target, (System.nanoTime() - relay.sentAt) / 1_000_000);
+            returnRelayedReply(relay, message);
+            return true;
+        }
+        return false;
+    }
+
+    private static final class RelayEntry {
+        final int index;
+        final String innerMessage;
+        final InetSocketAddress target;
+        final InetSocketAddress origin;
+        final byte originTxn0;
+        final byte originTxn1;
+        final long sentAt = System.nanoTime();
+        volatile TimerWheel.Timeout timer;
+        // Like a Transaction's: the entry expires once MAX_RESENDS resends have gone unanswered
+        volatile int resends;
+
+        RelayEntry(int index, String innerMessage, InetSocketAddress target, InetSocketAddress origin,
+                   byte originTxn0, byte originTxn1) {
+            this.index = index;
+            this.innerMessage = innerMessage;
+            this.target = target;
+            this.origin = origin;
+            this.originTxn0 = originTxn0;
+            this.originTxn1 = originTxn1;
+        }
+    }
+
+    // Forwards a relayed request and records who to send the reply to.
+    // Nothing waits here: the reply is matched by completeTransaction, and the timer wheel resends or expires the entry.
+    private void relayRequest(String targetAddress, CRNMessage message, int inner, InetSocketAddress sender) throws IOException {
+        int index = (message.byteAt(inner) << 8) | message.byteAt(inner + 1);
+        RelayEntry relay = new RelayEntry(index, message.text(inner), transport.resolve(targetAddress), sender,
+                (byte) message.byteAt(message.start()), (byte) message.byteAt(message.start() + 1));
+        relay.timer = timers.schedule(() -> relayTimeout(relay), rtt.timeout(relay.target));
+        int slot = txnSlot(index);
+        if ((slot >= 0 && pendingTransactions.get(slot) != null) || relays.putIfAbsent(index, relay) != null) {
+            relay.timer.cancel();
+            RelayEntry existing = relays.get(index);
+            if (existing != null && existing.origin.equals(sender)
+                    && existing.originTxn0 == relay.originTxn0 && existing.originTxn1 == relay.originTxn1) {
+                return; // The sender resent a request we are already relaying
+            }
+            dispatchMessage(sender, message.txn() + " I " + encodeCRNString("Relay busy"));
+            return;
+        }
+        transport.send(relay.target, relay.innerMessage);
+        metrics.relayForwards.increment();
+    }
+
+    private void relayTimeout(RelayEntry relay) {
+        if (relays.get(relay.index) != relay) return;
+        try {
+            rtt.backoff(relay.target);
+            if (relay.resends < MAX_RESENDS) {
+                relay.resends++;
+                metrics.retransmits.increment();
+                transport.send(relay.target, relay.innerMessage);
+                relay.timer = timers.schedule(() -> relayTimeout(relay), rtt.timeout(relay.target));
+            } else if (relays.remove(relay.index, relay)) {
+                metrics.relayTimeouts.increment();
+                String txn = new String(new char[] {(char) (relay.originTxn0 & 0xff), (char) (relay.originTxn1 & 0xff)});
+                dispatchMessage(relay.origin, txn + " I " + encodeCRNString("Relay timeout"));
+            }
+        } catch (IOException e) {
+            System.err.println("Relay resend failed: " + e);
+        }
+    }
+
+    // Sends the target's reply back to the relay's sender under the relay message's transaction ID, in one copy
+    private void returnRelayedReply(RelayEntry relay, CRNMessage reply) throws IOException {
+        ByteBuffer out = transport.acquire();
+        try {
+            out.put(relay.originTxn0).put(relay.originTxn1).put(reply.slice(reply.start() + 2));
+            out.flip();
+            transport.send(relay.origin, out);
+        } finally {
+            transport.release(out);
+        }
+    }
+
+    // Waits up to timeout ms for a reply, giving up on the request if none arrives
+    private <T> T awaitReply(CompletableFuture<T> reply, long timeout) throws InterruptedException {
+        try {
+            return reply.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            reply.cancel(false);
+            return null;
+        }
+    }
+
+    // Completes with the accepted replies once needed of them are in, or with fewer once every reply is in.
+    // Nothing is cancelled once the quorum is in, so the slower requests still reach their nodes.
+    private CompletableFuture<List<String>> quorumOf(List<CompletableFuture<String>> replies, Predicate<String> accept, int needed) {
+        return quorumOf(replies, accept, r -> "", needed);
+    }
+
+    // quorumOf where the needed replies must also agree: it completes once needed accepted replies share a vote.
+    // Replies voting null never complete it early.
+    private CompletableFuture<List<String>> quorumOf(List<CompletableFuture<String>> replies, Predicate<String> accept,
+                                                    Function<String, String> vote, int needed) {
+        List<String> accepted = new ArrayList<>();
+        Map<String, Integer> votes = new HashMap<>();
+        CompletableFuture<List<String>> quorum = new CompletableFuture<>();
+        List<CompletableFuture<Void>> seen = new ArrayList<>();
+        for (CompletableFuture<String> reply : replies) {
+            seen.add(reply.thenAccept(r -> {
+                if (!accept.test(r)) return;
+                synchronized (accepted) {
+                    accepted.add(r);
+                    String v = vote.apply(r);
+                    if (v != null && votes.merge(v, 1, Integer::sum) >= needed) quorum.complete(new ArrayList<>(accepted));
+                }
+            }));
+        }
+        CompletableFuture.allOf(seen.toArray(new CompletableFuture<?>[0])).whenComplete((r, e) -> {
+            synchronized (accepted) {
+                quorum.complete(new ArrayList<>(accepted));
+            }
+        });
+        return quorum;
+    }
+
+    private void awaitAll(List<? extends CompletableFuture<?>> replies, long timeout) throws InterruptedException {
+        awaitReply(CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenApply(v -> ""), timeout);
+        replies.forEach(r -> r.cancel(false));
+    }
+
+    // Iterative lookup: ask the closest nodes not yet queried, LOOKUP_PARALLELISM at a time,
+    // merge what they return and stop once a round no longer changes the closest replicationFactor.
+    private List<String> locateNearest(String key) throws Exception {
+        return metrics.locate.time(() -> lookUpNearest(key), nodes -> !nodes.isEmpty());
+    }
+
+    private List<String> lookUpNearest(String key) throws Exception {
+        List<String> cached = cachedNearest(key);
+        if (cached != null) return cached;
+        Lookup lookup = new Lookup(key);
+        runLookups(Collections.singletonList(lookup));
+        rememberNearest(lookup);
+        return lookup.closest;
+    }
+
+    // locateNearest for many keys at once. Every lookup advances in the same rounds,
+    // so a batch takes about as many round trips as one key.
+    private Map<String, List<String>> locateNearestAll(Collection<String> keys) throws Exception {
+        Map<String, List<String>> nearest = new LinkedHashMap<>();
+        Map<String, Lookup> lookups = new HashMap<>();
+        for (String key : keys) {
+            List<String> cached = cachedNearest(key);
+            nearest.put(key, cached);
+            if (cached == null) lookups.put(key, new Lookup(key));
+        }
+        runLookups(lookups.values());
+
+        for (Map.Entry<String, Lookup> e : lookups.entrySet()) {
+            rememberNearest(e.getValue());
+            nearest.put(e.getKey(), e.getValue().closest);
+        }
+        return nearest;
+    }
+
+    private List<String> cachedNearest(String key) {
+        Map<String, String> nodes = nearestNodes.get(HashID.cachedHashID(key));
+        if (nodes == null) return null;
+        metrics.lookupCacheHits.increment();
+        // The contacts cache may have dropped a node the routing table has no room for
+        for (Map.Entry<String, String> node : nodes.entrySet()) {
+            if (addressOf(node.getKey()) == null) contacts.put(node.getKey(), node.getValue());
+        }
+        return new ArrayList<>(nodes.keySet());
+    }
+
+    private void rememberNearest(Lookup lookup) {
+        if (lookup.closest.isEmpty()) return;
+        Map<String, String> nodes = new LinkedHashMap<>();
+        for (String node : lookup.closest) {
+            String address = addressOf(node);
+            if (address == null) return;
+            nodes.put(node, address);
+        }
+        nearestNodes.put(lookup.hash, Collections.unmodifiableMap(nodes));
+    }
 
-            udpSocket.setSoTimeout(2000);
-            byte[] buffer = new byte[MAX_BUFFER];
-            DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+    // Called when the nodes found for key let an operation down, so the next attempt looks again
+    private void forgetNearest(String key) {
+        nearestNodes.invalidate(HashID.cachedHashID(key));
+    }
+
+    private final class Lookup {
+        final String hash;
+        final long[] target;
+        final Map<String, Integer> distances = new HashMap<>();
+        final Set<String> queried = new HashSet<>();
+        List<String> closest;
+        int rounds;
+
+        Lookup(String key) {
+            hash = HashID.cachedHashID(key);
+            target = HashID.cachedHashWords(key);
+            queried.add(nodeName);
+            routingTable.lookedUp(target);
+            for (String node : routingTable.names()) {
+                RoutingTable.Entry entry = routingTable.get(node);
+                if (entry != null) distances.put(node, HashID.distance(entry.id, target));
+            }
+            closest = closestCandidates(distances, replicationFactor);
+        }
+
+        List<String> nextBatch() {
+            List<String> batch = new ArrayList<>();
+            for (String node : closestCandidates(distances, distances.size())) {
+                if (batch.size() >= LOOKUP_PARALLELISM) break;
+                if (!queried.contains(node)) batch.add(node);
+            }
+            queried.addAll(batch);
+            if (!batch.isEmpty()) rounds++;
+            return batch;
+        }
+
+        void merge(String node, String response) throws Exception {
+            if (response == null || !response.startsWith("O ", 3)) {
+                // No answer, so it cannot be one of the nodes we hand back
+                distances.remove(node);
+                return;
+            }
+            routingTable.markAlive(node);
+            Map<String, String> found = addressPairs(parseReply(response));
+            for (Map.Entry<String, String> e : found.entrySet()) {
+                String name = e.getKey();
+                if (!routingTable.put(name, e.getValue())) contacts.put(name, e.getValue());
+                if (!distances.containsKey(name)) distances.put(name, HashID.distance(HashID.cachedHashWords(name), target));
+            }
+        }
+
+        // Returns true if the round changed the closest nodes
+        boolean advanced() {
+            List<String> nowClosest = closestCandidates(distances, replicationFactor);
+            if (nowClosest.equals(closest)) return false;
+            closest = nowClosest;
+            return true;
+        }
+    }
+
+    private void runLookups(Collection<Lookup> lookups) throws Exception {
+        List<Lookup> active = new ArrayList<>(lookups);
+        while (!active.isEmpty()) {
+            List<Lookup> owners = new ArrayList<>();
+            List<String> nodes = new ArrayList<>();
+            List<CompletableFuture<String>> replies = new ArrayList<>();
+            for (Iterator<Lookup> it = active.iterator(); it.hasNext(); ) {
+                Lookup lookup = it.next();
+                List<String> batch = lookup.nextBatch();
+                if (batch.isEmpty()) {
+                    it.remove();
+                    continue;
+                }
+                for (String node : batch) {
+                    owners.add(lookup);
+                    nodes.add(node);
+                    replies.add(sendPipelined(node, "N " + lookup.hash));
+                }
+            }
+            if (replies.isEmpty()) break;
+            awaitAll(replies, roundTimeout(new HashSet<>(nodes)));
+
+            for (int i = 0; i < replies.size(); i++) {
+                // awaitAll cancels whatever is still waiting, so cancelled counts as unanswered like timed out,
+                // unless the node is shedding our requests: then it is busy rather than gone
+                CompletableFuture<String> reply = replies.get(i);
+                String response = reply.isCompletedExceptionally() ? null : reply.join();
+                if (response == null && !isShedding(nodes.get(i))) unanswered(nodes.get(i));
+                owners.get(i).merge(nodes.get(i), response);
+            }
+            active.removeIf(lookup -> !lookup.advanced());
+        }
+        for (Lookup lookup : lookups) {
+            metrics.lookupRounds.record(lookup.rounds);
+            // queried starts out holding this node
+            metrics.lookupHops.record(lookup.queried.size() - 1);
+        }
+    }
+
+    private void scheduleMaintenance() {
+        timers.schedule(() -> workers.execute(nextStripe.getAndIncrement(), this::maintainRoutingTable), MAINTENANCE_INTERVAL);
+    }
+
+    // Probes the nodes we have not heard from lately and refreshes a few buckets no lookup has been near
+    private void maintainRoutingTable() {
+        if (!transport.isOpen()) return;
+        try {
+            long now = System.currentTimeMillis();
+            for (RoutingTable.Entry entry : routingTable.unseenSince(now - PROBE_INTERVAL)) {
+                probe(entry.name);
+            }
+
+            List<Integer> stale = routingTable.bucketsNotLookedUpSince(now - REFRESH_INTERVAL);
+            Collections.shuffle(stale);
+            for (int distance : stale.subList(0, Math.min(REFRESHES_PER_ROUND, stale.size()))) {
+                long[] id = routingTable.randomIdAt(distance);
+                routingTable.lookedUp(id);
+                String hash = HashID.toHex(id);
+                for (RoutingTable.Entry entry : routingTable.nearest(id, LOOKUP_PARALLELISM)) {
+                    if (!entry.name.equals(nodeName)) sendToNode(entry.name, "N " + hash).thenAccept(this::learnAddresses);
+                }
+            }
             try {
-                udpSocket.receive(reply);
-                String response = new String(reply.getData(), 0, reply.getLength());
-                String[] parts = response.split(" ", 3);
-                if (parts.length >= 2 && parts[0].equals(txn.trim()) && parts[1].equals("O")) {
-                    String[] nodes = parts[2].split(" 0 ");
-                    for (int i = 0; i < nodes.length; i += 2) {
-                        if (i + 1 < nodes.length) {
-                            String nName = nodes[i].trim();
-                            String nAddr = nodes[i + 1].trim();
-                            if (nName.startsWith("N:") && nAddr.matches("\\d+\\.\\d+\\.\\d+\\.\\d+:\\d+")) {
-                                temporary.put(nName, nAddr);
-                            }
-                        }
-                    }
+                synchronizeReplicas();
+            } catch (IOException e) {
+                System.err.println("Replica synchronisation failed: " + e);
+            }
+            saveRoutingTable();
+            scheduleHandoff();
+        } catch (RuntimeException e) {
+            System.err.println("Routing table maintenance failed: " + e);
+        } finally {
+            // Whatever went wrong this time, the next pass must still happen
+            scheduleMaintenance();
+        }
+    }
+
+    // Starts an anti-entropy round with the nodes closest to this one, which share the most pairs with it
+    public void synchronizeReplicas() throws IOException {
+        for (RoutingTable.Entry peer : routingTable.nearest(nodeId, replicationFactor + 1)) {
+            if (peer.name.equals(nodeName)) continue;
+            sendDigest(peer, digestOf("", sharedPairs(peer, "")));
+        }
+    }
+
+    // Digests and key lists replicas exchange go in I messages starting "AE ". They answer nothing, so whatever
+    // their transaction ID they are never taken for the reply to a request or a relay.
+    private static boolean isSyncMessage(CRNMessage message) {
+        return message.command() == 'I' && message.parseStrings(1) && message.startsWith(0, "AE ");
+    }
+
+    // Handles a digest or key list from a neighbour, which must be in our routing table at the address it sent from
+    private void synchronize(String text, InetSocketAddress sender) throws Exception {
+        int bodyStart = skipCRNString(text, 5);
+        if (bodyStart < 0) return;
+        RoutingTable.Entry peer = routingTable.get(decodeCRNString(text, 5));
+        if (peer == null || peer.name.equals(nodeName) || !transport.resolve(peer.address).equals(sender)) return;
+        String body = text.substring(bodyStart);
+        if (text.startsWith("AE D ")) {
+            RangeDigest theirs = RangeDigest.decode(body);
+            if (theirs != null) compareDigest(peer, theirs);
+        } else if (text.startsWith("AE K ")) {
+            compareKeys(peer, body, true);
+        } else if (text.startsWith("AE L ")) {
+            compareKeys(peer, body, false);
+        }
+    }
+
+    // Answers each child range that differs from ours with a digest one level down, or with our keys in it once small
+    private void compareDigest(RoutingTable.Entry peer, RangeDigest theirs) throws IOException {
+        Map<String, String> pairs = sharedPairs(peer, theirs.prefix);
+        RangeDigest mine = digestOf(theirs.prefix, pairs);
+        for (int child = 0; child < RangeDigest.CHILDREN; child++) {
+            if (mine.sameChild(theirs, child)) continue;
+            String prefix = mine.childPrefix(child);
+            Map<String, String> inChild = new HashMap<>();
+            for (Map.Entry<String, String> pair : pairs.entrySet()) {
+                if (HashID.cachedHashID(pair.getKey()).startsWith(prefix)) inChild.put(pair.getKey(), pair.getValue());
+            }
+            boolean small = mine.counts[child] <= SYNC_LEAF_KEYS && theirs.counts[child] <= SYNC_LEAF_KEYS;
+            if ((small || prefix.length() == 64) && sendKeys(peer, "AE K ", prefix, inChild)) continue;
+            if (prefix.length() < 64) sendDigest(peer, digestOf(prefix, inChild));
+        }
+    }
+
+    // Compares a neighbour's keys in a range with ours, answering with our own list if asked so it can do the same.
+    // Keys the neighbour has that we lack, or that we disagree on, are pulled from a quorum of replicas.
+    private void compareKeys(RoutingTable.Entry peer, String body, boolean answer) throws Exception {
+        int space = body.indexOf(' ');
+        if (space < 0) return;
+        String prefix = body.substring(0, space).equals("-") ? "" : body.substring(0, space);
+        if (prefix.length() > 64 || !prefix.matches("[0-9a-f]*")) return;
+
+        Map<String, String> mine = sharedPairs(peer, prefix);
+        if (answer) sendKeys(peer, "AE L ", prefix, mine);
+        List<String> differing = new ArrayList<>();
+        int pos = space + 1;
+        while (pos < body.length() && differing.size() < SYNC_LEAF_KEYS) {
+            int hashStart = skipCRNString(body, pos);
+            if (hashStart < 0) return;
+            int hashEnd = body.indexOf(' ', hashStart);
+            if (hashEnd < 0) return;
+            String key = decodeCRNString(body, pos);
+            pos = hashEnd + 1;
+            String hash = HashID.cachedHashID(key);
+            if (key.startsWith("N:") || !hash.startsWith(prefix) || !isAmongClosest(key)) continue;
+            String value = mine.get(key);
+            if (value == null || !Long.toHexString(RangeDigest.entryHash(hash, value)).equals(body.substring(hashStart, hashEnd))) {
+                differing.add(key);
+            }
+        }
+        schedulePull(differing);
+    }
+
+    // Queues keys to pull, dropping those there is no room for; a later round will find them again.
+    // At most one virtual thread pulls at a time, working through the queue.
+    private void schedulePull(List<String> keys) {
+        for (String key : keys) {
+            if (pullQueue.size() >= SYNC_PULL_QUEUE) break;
+            pullQueue.add(key);
+        }
+        if (!pullRunning.compareAndSet(false, true)) return;
+        Thread.ofVirtual().name("crn-sync").start(() -> {
+            try {
+                while (transport.isOpen()) {
+                    Iterator<String> queued = pullQueue.iterator();
+                    if (!queued.hasNext()) break;
+                    String key = queued.next();
+                    pullQueue.remove(key);
+                    pull(key);
                 }
-            } catch (SocketTimeoutException ignored) {}
+            } finally {
+                pullRunning.set(false);
+            }
+            if (!pullQueue.isEmpty() && transport.isOpen()) schedulePull(List.of());
+        });
+    }
+
+    // Reads the key from a quorum of its replicas, then keeps the agreed value unless the key was written meanwhile
+    private void pull(String key) {
+        try {
+            long version = keyValueStore.version(key);
+            String agreed = readReplicas(key);
+            if (agreed != null && !agreed.equals(keyValueStore.get(key)) && keyValueStore.putIfVersion(key, version, agreed)) {
+                hotValues.invalidate(key);
+                metrics.syncRepairs.increment();
+            }
+        } catch (Exception e) {
+            System.err.println("Replica repair failed: " + e);
         }
+    }
 
-        knownAddresses.putAll(temporary);
-        return rankNearest(hash);
+    // The data pairs under prefix that, as far as our routing table shows, both we and peer are among the closest for
+    private Map<String, String> sharedPairs(RoutingTable.Entry peer, String prefix) throws IOException {
+        Map<String, String> pairs = new HashMap<>();
+        for (String key : keyValueStore.keys()) {
+            if (key.startsWith("N:") || !HashID.cachedHashID(key).startsWith(prefix)) continue;
+            long[] target = HashID.cachedHashWords(key);
+            if (!isAmongClosest(target, nodeId) || !isAmongClosest(target, peer.id)) continue;
+            String value = keyValueStore.get(key);
+            if (value != null) pairs.put(key, value);
+        }
+        return pairs;
     }
-    private boolean isAmongClosest(String key) throws Exception {
-        String targetHash = HashID.computeHashID(key);
-        String thisHash = HashID.computeHashID(nodeName);
-        int thisDistance = computeDist(thisHash, targetHash);
 
-        List<String> nearest = rankNearest(targetHash);
+    private static RangeDigest digestOf(String prefix, Map<String, String> pairs) {
+        RangeDigest digest = new RangeDigest(prefix);
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            digest.add(HashID.cachedHashID(pair.getKey()), pair.getValue());
+        }
+        return digest;
+    }
 
-        // Pre-compute distances for safety
-        Map<String, Integer> distanceMap = new HashMap<>();
-        for (String node : nearest) {
-            String nodeHash = HashID.computeHashID(node);
-            distanceMap.put(node, computeDist(nodeHash, targetHash));
+    private void sendDigest(RoutingTable.Entry peer, RangeDigest digest) throws IOException {
+        sendSync(peer, "AE D " + encodeCRNString(nodeName) + digest.encode());
+    }
+
+    // Lists our keys under prefix with the hash of each pair. Returns false if they don't fit in one message.
+    private boolean sendKeys(RoutingTable.Entry peer, String kind, String prefix, Map<String, String> pairs) throws IOException {
+        StringBuilder text = new StringBuilder(kind).append(encodeCRNString(nodeName)).append(prefix.isEmpty() ? "-" : prefix).append(' ');
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            long hash = RangeDigest.entryHash(HashID.cachedHashID(pair.getKey()), pair.getValue());
+            text.append(encodeCRNString(pair.getKey())).append(Long.toHexString(hash)).append(' ');
         }
+        String message = text.toString();
+        // Header, "I " and the CRN string's space count
+        if (message.getBytes(StandardCharsets.UTF_8).length + 16 > MAX_BUFFER) return false;
+        sendSync(peer, message);
+        return true;
+    }
 
-        // Count how many nodes are closer or equal in distance
-        long closerOrEqual = nearest.stream()
-                .filter(n -> distanceMap.get(n) <= thisDistance)
-                .count();
+    private void sendSync(RoutingTable.Entry peer, String text) throws IOException {
+        dispatchMessage(peer.address, createTxnId() + " I " + encodeCRNString(text));
+        metrics.syncMessages.increment();
+    }
 
-        return closerOrEqual < 3;
+    // Runs handOff on a virtual thread after HANDOFF_DELAY, letting the routing changes that come together,
+    // such as a node's join, settle first. A request while it runs makes it go round again.
+    private void scheduleHandoff() {
+        handoffPending.set(true);
+        if (!handoffRunning.compareAndSet(false, true)) return;
+        timers.schedule(() -> Thread.ofVirtual().name("crn-handoff").start(() -> {
+            try {
+                while (handoffPending.getAndSet(false) && transport.isOpen()) handOff();
+            } catch (Exception e) {
+                System.err.println("Handoff failed: " + e);
+            } finally {
+                handoffRunning.set(false);
+            }
+            if (handoffPending.get()) scheduleHandoff();
+        }), HANDOFF_DELAY);
     }
 
-    private List<String> rankNearest(String hashID) throws Exception {
-        List<String> nearby = new ArrayList<>();
-        for (String n : knownAddresses.keySet()) {
-            String nHash = HashID.computeHashID(n);
-            int dist = computeDist(nHash, hashID);
-            nodeDistances.put(n, dist);
-            nearby.add(n);
+    // As the spec requires, stores each data pair there are now replicationFactor strictly closer nodes for
+    // with the closest nodes, and deletes our copy once they all hold the key. Pairs we keep are also sent
+    // to any newly arrived node that is now among the closest for them, which would otherwise answer
+    // reads for them with S N. Our copy is only deleted if it hasn't changed meanwhile.
+    private void handOff() throws Exception {
+        List<String> newcomers = new ArrayList<>(arrivals);
+        arrivals.removeAll(newcomers);
+        List<String> keys = new ArrayList<>(keyValueStore.keys());
+        for (int from = 0; from < keys.size(); from += HANDOFF_BATCH) {
+            Map<String, String> values = new HashMap<>();
+            Map<String, Long> versions = new HashMap<>();
+            List<CompletableFuture<String>> sent = new ArrayList<>();
+            for (String key : keys.subList(from, Math.min(keys.size(), from + HANDOFF_BATCH))) {
+                if (key.startsWith("N:")) continue;
+                long version = keyValueStore.version(key);
+                String value = keyValueStore.get(key);
+                if (value == null) continue;
+                if (isAmongClosest(key)) {
+                    for (RoutingTable.Entry node : routingTable.nearest(HashID.cachedHashWords(key), replicationFactor)) {
+                        if (newcomers.contains(node.name)) sent.add(sendPipelined(node.name, storeCopy(key, value)));
+                    }
+                    continue;
+                }
+                values.put(key, value);
+                versions.put(key, version);
+                // Looked up afresh, as the cached nodes for the key are likely to be from before the change
+                forgetNearest(key);
+            }
+
+            Map<String, List<String>> nearest = locateNearestAll(values.keySet());
+            Map<String, List<CompletableFuture<String>>> replies = new HashMap<>();
+            for (Map.Entry<String, List<String>> group : groupByNode(nearest).entrySet()) {
+                if (group.getKey().equals(nodeName)) continue;
+                for (String key : group.getValue()) {
+                    CompletableFuture<String> reply = sendPipelined(group.getKey(), storeCopy(key, values.get(key)));
+                    replies.computeIfAbsent(key, k -> new ArrayList<>()).add(reply);
+                    sent.add(reply);
+                }
+            }
+            awaitAll(sent, REPLY_WAIT_LIMIT);
+
+            for (Map.Entry<String, List<CompletableFuture<String>>> e : replies.entrySet()) {
+                String key = e.getKey();
+                // The lookup found us among the closest after all, or found too few nodes to leave the key to
+                if (nearest.get(key).contains(nodeName) || e.getValue().size() < replicationFactor) continue;
+                boolean held = true;
+                for (CompletableFuture<String> reply : e.getValue()) {
+                    held &= reply.isDone() && !reply.isCompletedExceptionally() && isHeld(reply.join());
+                }
+                if (held && keyValueStore.removeIfVersion(key, versions.get(key))) metrics.handedOff.increment();
+            }
         }
-        nearby.sort(Comparator.comparingInt(nodeDistances::get));
-        return nearby.subList(0, Math.min(3, nearby.size()));
     }
 
-    private int computeDist(String h1, String h2) {
-        int bitsMatch = 0;
-        for (int i = 0; i < Math.min(h1.length(), h2.length()); i++) {
-            int xor = Integer.parseInt(h1.substring(i, i + 1), 16) ^ Integer.parseInt(h2.substring(i, i + 1), 16);
-            if (xor == 0) bitsMatch += 4;
-            else {
-                bitsMatch += Integer.numberOfLeadingZeros(xor) - 28;
-                break;
+    // A C with the same current and new value: a node without the key adds it,
+    // and a node that has since been written to keeps its newer value
+    private String storeCopy(String key, String value) {
+        String encoded = encodeCRNString(value);
+        return "C " + encodeCRNString(key) + encoded + encoded;
+    }
+
+    // A C reply from a node that now has the key: it added it, swapped it or already had another value
+    private boolean isHeld(String reply) {
+        return reply.startsWith("D A", 3) || reply.startsWith("D R", 3) || reply.startsWith("D N", 3);
+    }
+
+    private void probe(String node) {
+        sendToNode(node, "G").whenComplete((reply, e) -> {
+            if (reply != null && reply.startsWith("H ", 3)) {
+                routingTable.markAlive(node);
+            } else if (e instanceof TimeoutException) {
+                unanswered(node);
             }
+        });
+    }
+
+    // Called when a request to node ran out of resends; evicts it once that keeps happening
+    private void unanswered(String node) {
+        if (node.equals(nodeName)) return;
+        if (routingTable.markFailed(node) >= MAX_PROBE_FAILURES) {
+            routingTable.remove(node);
+            contacts.remove(node);
+            nearestNodes.invalidateIf(nodes -> nodes.containsKey(node));
         }
-        return 256 - bitsMatch;
+    }
+
+    private List<String> closestCandidates(Map<String, Integer> distances, int count) {
+        List<String> sorted = new ArrayList<>(distances.keySet());
+        sorted.sort(Comparator.comparingInt(distances::get));
+        return sorted.subList(0, Math.min(count, sorted.size()));
+    }
+
+    // Handles a C request and returns the response character. The stored version is checked again when
+    // the new value is put, so the swap is atomic whatever else is writing the key at the same time.
+    private String compareAndSwap(String key, String requested, String updated) throws Exception {
+        while (true) {
+            long version = keyValueStore.version(key);
+            String stored = version == 0 ? null : keyValueStore.get(key);
+            if (stored != null) {
+                if (!stored.equals(requested)) return "N";
+                if (keyValueStore.putIfVersion(key, version, updated)) return "R";
+            } else if (isAmongClosest(key)) {
+                if (keyValueStore.putIfVersion(key, 0, updated)) return "A";
+            } else {
+                return "X";
+            }
+        }
+    }
+
+    private boolean isAmongClosest(String key) throws Exception {
+        return isAmongClosest(HashID.cachedHashWords(key), nodeId);
+    }
+
+    // Whether the node with the given ID is among the closest to target, as far as our routing table shows
+    private boolean isAmongClosest(long[] target, long[] node) {
+        int thisDistance = HashID.distance(node, target);
+
+        // Only replicationFactor nodes strictly closer to the key make this node reject it
+        long closer = routingTable.nearest(target, replicationFactor).stream()
+                .filter(n -> HashID.distance(n.id, target) < thisDistance)
+                .count();
+
+        return closer < replicationFactor;
     }
 
     private String convertToHex(byte[] bytes) {
@@ -647,23 +1931,48 @@ public class Node implements NodeInterface {
         return hex.toString();
     }
 
-    private void dispatchMessage(String ip, int port, String msg) throws Exception {
-        byte[] bytes = msg.getBytes(StandardCharsets.UTF_8);
-        DatagramPacket udpPacket = new DatagramPacket(bytes, bytes.length,
-                InetAddress.getByName(ip), port);
-        udpSocket.send(udpPacket);
+    private void dispatchMessage(String address, String msg) throws IOException {
+        transport.send(transport.resolve(address), msg);
+    }
+
+    private void dispatchMessage(InetSocketAddress target, String msg) throws IOException {
+        transport.send(target, msg);
     }
 
     // For Testing Purposes
     public void showKnownNodes() {
-        knownAddresses.forEach((k, v) -> System.out.println("Node: " + v));
+        for (String name : routingTable.names()) System.out.println("Node: " + routingTable.getAddress(name));
     }
 
-    public void insertDummyNode(String name, String addr) {
-        knownAddresses.put(name, addr);
+    public void insertDummyNode(String name, String addr) throws Exception {
+        routingTable.put(name, addr);
     }
 
     public void closePort() {
-        if (udpSocket != null && !udpSocket.isClosed()) udpSocket.close();
+        // The timer and workers first, so nothing they still hold tries to send on a closed port
+        if (ownsScheduling && timers != null) timers.stop();
+        if (ownsScheduling && workers != null) workers.shutdown();
+        try {
+            if (transport != null && transport.isOpen()) transport.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close port: " + e);
+        }
+        synchronized (activityLock) {
+            activityLock.notifyAll();
+        }
+        if (metricsServer != null) metricsServer.stop(0);
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                System.err.println("Failed to unregister metrics: " + e);
+            }
+        }
+        saveRoutingTable();
+        try {
+            keyValueStore.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close store: " + e);
+        }
     }
 }
\ No newline at end of file
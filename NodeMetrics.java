@@ -0,0 +1,265 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Counters and latency histograms for what a node does: the requests it handles, the operations its
+// clients call, resends, timeouts, relaying and load shedding, plus gauges such as the routing table size.
+// Recording is a LongAdder increment or a histogram update, cheap enough to leave on all the time.
+// The same snapshot is served over JMX, as a dynamic MBean, and as plain text over HTTP.
+// Latencies are in microseconds.
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+class NodeMetrics implements DynamicMBean {
+
+    // The requests a node handles, each with its own histogram
+    private static final String REQUESTS = "GNERWCV";
+    // The replies, and information messages, that reach a node's handlers when nothing was waiting for them
+    private static final String REPLIES = "HOFSXDI";
+
+    static final class Operation {
+        final LongAdder failures = new LongAdder();
+        final Histogram micros = new Histogram();
+
+        void record(long startNanos, boolean succeeded) {
+            micros.record((System.nanoTime() - startNanos) / 1000);
+            if (!succeeded) failures.increment();
+        }
+
+        // Runs call and records how long it took. An exception, or a result succeeded rejects, counts as a failure.
+        <T> T time(Callable<T> call, Predicate<T> succeeded) throws Exception {
+            long start = System.nanoTime();
+            boolean ok = false;
+            try {
+                T result = call.call();
+                ok = succeeded.test(result);
+                return result;
+            } finally {
+                record(start, ok);
+            }
+        }
+
+        void add(Operation other) {
+            failures.add(other.failures.sum());
+            micros.add(other.micros);
+        }
+    }
+
+    private final Operation[] handled = new Operation[REQUESTS.length()];
+    final Operation read = new Operation();
+    final Operation write = new Operation();
+    final Operation exists = new Operation();
+    final Operation cas = new Operation();
+    final Operation locate = new Operation();
+
+    // Rounds each lookup took and how many nodes it asked
+    final Histogram lookupRounds = new Histogram();
+    final Histogram lookupHops = new Histogram();
+
+    final LongAdder retransmits = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    // Requests a node shedding load asked to have sent again later
+    final LongAdder putOff = new LongAdder();
+    final LongAdder relayForwards = new LongAdder();
+    final LongAdder relayTimeouts = new LongAdder();
+    final LongAdder rateLimited = new LongAdder();
+    final LongAdder overloaded = new LongAdder();
+    final LongAdder replayed = new LongAdder();
+    // Replies that arrived after their request gave up, and information messages
+    final LongAdder unmatched = new LongAdder();
+    // Messages whose command is neither a request nor a reply
+    final LongAdder unknown = new LongAdder();
+    final LongAdder valueCacheHits = new LongAdder();
+    final LongAdder lookupCacheHits = new LongAdder();
+    // Data pairs handed to closer nodes and deleted here
+    final LongAdder handedOff = new LongAdder();
+    // Anti-entropy digests and key lists sent, and keys a quorum read repaired here
+    final LongAdder syncMessages = new LongAdder();
+    final LongAdder syncRepairs = new LongAdder();
+
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+    NodeMetrics() {
+        for (int i = 0; i < handled.length; i++) handled[i] = new Operation();
+    }
+
+    // Records a request handled by this node, or counts a message that isn't one
+    void handled(char command, long startNanos) {
+        int i = REQUESTS.indexOf(command);
+        if (i >= 0) {
+            handled[i].record(startNanos, true);
+        } else if (REPLIES.indexOf(command) >= 0) {
+            unmatched.increment();
+        } else {
+            unknown.increment();
+        }
+    }
+
+    synchronized void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    // Adds the counts of other to these, for a total over many nodes. Gauges are not added.
+    void add(NodeMetrics other) {
+        for (int i = 0; i < handled.length; i++) handled[i].add(other.handled[i]);
+        read.add(other.read);
+        write.add(other.write);
+        exists.add(other.exists);
+        cas.add(other.cas);
+        locate.add(other.locate);
+        lookupRounds.add(other.lookupRounds);
+        lookupHops.add(other.lookupHops);
+        retransmits.add(other.retransmits.sum());
+        timeouts.add(other.timeouts.sum());
+        putOff.add(other.putOff.sum());
+        relayForwards.add(other.relayForwards.sum());
+        relayTimeouts.add(other.relayTimeouts.sum());
+        rateLimited.add(other.rateLimited.sum());
+        overloaded.add(other.overloaded.sum());
+        replayed.add(other.replayed.sum());
+        unmatched.add(other.unmatched.sum());
+        unknown.add(other.unknown.sum());
+        valueCacheHits.add(other.valueCacheHits.sum());
+        lookupCacheHits.add(other.lookupCacheHits.sum());
+        handedOff.add(other.handedOff.sum());
+        syncMessages.add(other.syncMessages.sum());
+        syncRepairs.add(other.syncRepairs.sum());
+    }
+
+    // Every metric by name, in a fixed order
+    synchronized Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int i = 0; i < handled.length; i++) {
+            putHistogram(values, "handled." + REQUESTS.charAt(i), handled[i].micros);
+        }
+        putOperation(values, "client.read", read);
+        putOperation(values, "client.write", write);
+        putOperation(values, "client.exists", exists);
+        putOperation(values, "client.cas", cas);
+        putOperation(values, "client.locate", locate);
+        putHistogram(values, "lookup.rounds", lookupRounds);
+        putHistogram(values, "lookup.hops", lookupHops);
+        values.put("transmit.retransmits", retransmits.sum());
+        values.put("transmit.timeouts", timeouts.sum());
+        values.put("transmit.put_off", putOff.sum());
+        values.put("relay.forwards", relayForwards.sum());
+        values.put("relay.timeouts", relayTimeouts.sum());
+        values.put("shed.rate_limited", rateLimited.sum());
+        values.put("shed.overloaded", overloaded.sum());
+        values.put("replies.replayed", replayed.sum());
+        values.put("messages.unmatched", unmatched.sum());
+        values.put("messages.unknown", unknown.sum());
+        values.put("cache.value_hits", valueCacheHits.sum());
+        values.put("cache.lookup_hits", lookupCacheHits.sum());
+        values.put("store.handed_off", handedOff.sum());
+        values.put("sync.messages", syncMessages.sum());
+        values.put("sync.repairs", syncRepairs.sum());
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        return values;
+    }
+
+    private static void putOperation(Map<String, Long> values, String name, Operation operation) {
+        putHistogram(values, name, operation.micros);
+        values.put(name + ".failures", operation.failures.sum());
+    }
+
+    private static void putHistogram(Map<String, Long> values, String name, Histogram histogram) {
+        values.put(name + ".count", histogram.count());
+        values.put(name + ".mean", histogram.mean());
+        values.put(name + ".p50", histogram.percentile(0.50));
+        values.put(name + ".p90", histogram.percentile(0.90));
+        values.put(name + ".p99", histogram.percentile(0.99));
+        values.put(name + ".p999", histogram.percentile(0.999));
+        values.put(name + ".max", histogram.max());
+    }
+
+    // One "crn_<metric>{node="<node>"} <value>" line per metric, which Prometheus can scrape
+    String text(String node) {
+        StringBuilder text = new StringBuilder();
+        String label = "{node=\"" + node.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+        for (Map.Entry<String, Long> e : snapshot().entrySet()) {
+            text.append("crn_").append(e.getKey().replace('.', '_')).append(label).append(' ').append(e.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    // Serves text(node) at /metrics on port
+    HttpServer serve(int port, String node) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = text(node).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    // Registers with the platform MBean server as crn:type=Node,name=<node>
+    ObjectName register(String node) throws JMException {
+        ObjectName name = new ObjectName("crn:type=Node,name=" + ObjectName.quote(node));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        return name;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = snapshot().get(attribute);
+        if (value == null) throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = values.get(attribute);
+            if (value != null) list.add(new Attribute(attribute, value));
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Long> values = snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (String name : values.keySet()) {
+            attributes[i++] = new MBeanAttributeInfo(name, "java.lang.Long", name, true, false, false);
+        }
+        return new MBeanInfo(NodeMetrics.class.getName(), "CRN node metrics", attributes, null, null, null);
+    }
+}
@@ -0,0 +1,78 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// One level of a Merkle tree over the hashIDs of data keys, which replicas compare to find the pairs
+// they disagree on without sending the pairs themselves.
+// A range is every hashID starting with a prefix of whole hex digits. It is split into CHILDREN by the
+// next hex digit, and each child is summarised by how many pairs fall in it and the XOR of their hashes,
+// so replicas holding the same pairs have the same summary whatever order they stored them in.
+//
+// Sent as: prefix ("-" for the whole ID space), then "count:hash" for each child, separated by spaces.
+
+class RangeDigest {
+
+    static final int CHILDREN = 16;
+
+    final String prefix;
+    final int[] counts = new int[CHILDREN];
+    final long[] hashes = new long[CHILDREN];
+
+    RangeDigest(String prefix) {
+        this.prefix = prefix;
+    }
+
+    void add(String hashID, String value) {
+        int child = Character.digit(hashID.charAt(prefix.length()), 16);
+        counts[child]++;
+        hashes[child] ^= entryHash(hashID, value);
+    }
+
+    String childPrefix(int child) {
+        return prefix + Character.forDigit(child, 16);
+    }
+
+    boolean sameChild(RangeDigest other, int child) {
+        return counts[child] == other.counts[child] && hashes[child] == other.hashes[child];
+    }
+
+    // FNV-1a over the hashID and value, finished with the MurmurHash3 mixer so nearby inputs spread out
+    static long entryHash(String hashID, String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < hashID.length(); i++) h = (h ^ hashID.charAt(i)) * 0x100000001b3L;
+        h = (h ^ ' ') * 0x100000001b3L;
+        for (int i = 0; i < value.length(); i++) h = (h ^ value.charAt(i)) * 0x100000001b3L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    String encode() {
+        StringBuilder text = new StringBuilder(prefix.isEmpty() ? "-" : prefix);
+        for (int i = 0; i < CHILDREN; i++) {
+            text.append(' ').append(counts[i]).append(':').append(Long.toHexString(hashes[i]));
+        }
+        return text.toString();
+    }
+
+    // Returns null unless text is a digest of a range that still has children
+    static RangeDigest decode(String text) {
+        String[] fields = text.split(" ");
+        if (fields.length != CHILDREN + 1) return null;
+        String prefix = fields[0].equals("-") ? "" : fields[0];
+        if (prefix.length() >= 64 || !prefix.matches("[0-9a-f]*")) return null;
+        RangeDigest digest = new RangeDigest(prefix);
+        try {
+            for (int i = 0; i < CHILDREN; i++) {
+                int colon = fields[i + 1].indexOf(':');
+                if (colon < 0) return null;
+                digest.counts[i] = Integer.parseInt(fields[i + 1].substring(0, colon));
+                digest.hashes[i] = Long.parseUnsignedLong(fields[i + 1].substring(colon + 1), 16);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return digest;
+    }
+}
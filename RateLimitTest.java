@@ -0,0 +1,77 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Writes and reads batches larger than the rate limiter's burst through three local nodes.
+// With the default limits a batch must get through without being shed; with a tight limit
+// the nodes shed it, and every write must still be acknowledged and every key read back,
+// however much slower that makes it.
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RateLimitTest {
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int limitedKeys = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        Node[] nodes = new Node[3];
+        String[] nodeNames = {"N:limitA", "N:limitB", "N:limitC"};
+        int[] ports = {20130, 20131, 20132};
+
+        String localIP = InetAddress.getLocalHost().getHostAddress();
+        for (int i = 0; i < 3; i++) {
+            nodes[i] = new Node();
+            nodes[i].setNodeName(nodeNames[i]);
+            nodes[i].openPort(ports[i]);
+            // Every read goes to the replicas rather than to values this node cached
+            nodes[i].setValueCache(0, 0);
+        }
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                nodes[i].insertDummyNode(nodeNames[j], localIP + ":" + ports[j]);
+            }
+        }
+
+        boolean worked = runBatch(nodes[0], "D:default-", keys);
+
+        // Far below what the batch sends, so most of it is shed and has to be sent again
+        for (Node node : nodes) node.setRateLimit(2000, 500);
+        worked &= runBatch(nodes[0], "D:limited-", limitedKeys);
+
+        long shed = 0;
+        for (Node node : nodes) shed += node.metrics().snapshot().get("shed.rate_limited");
+        System.out.println("Requests shed: " + shed + ", put off: " + nodes[0].metrics().snapshot().get("transmit.put_off"));
+        System.out.println(worked ? "Rate limit test worked!" : "Rate limit test failed!");
+        System.exit(0);
+    }
+
+    private static boolean runBatch(Node node, String prefix, int count) throws Exception {
+        Map<String, String> pairs = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            pairs.put(prefix + i, "value-" + i);
+        }
+
+        List<String> timedOut = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        Map<String, Boolean> written = node.writeAll(pairs, timedOut);
+        int acknowledged = 0;
+        for (boolean ok : written.values()) {
+            if (ok) acknowledged++;
+        }
+        System.out.println(prefix + ": " + acknowledged + " of " + count + " writes acknowledged, "
+                + timedOut.size() + " timed out, in " + (System.currentTimeMillis() - start) + " ms");
+
+        timedOut.clear();
+        start = System.currentTimeMillis();
+        Map<String, String> read = node.readAll(pairs.keySet(), timedOut);
+        int matching = 0;
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            if (pair.getValue().equals(read.get(pair.getKey()))) matching++;
+        }
+        System.out.println(prefix + ": " + matching + " of " + count + " keys read back, "
+                + timedOut.size() + " timed out, in " + (System.currentTimeMillis() - start) + " ms");
+        return acknowledged == count && matching == count;
+    }
+}
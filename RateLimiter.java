@@ -0,0 +1,102 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Token buckets per source address. Each source may send a burst of requests at once and then
+// a steady rate after that; whatever it sends beyond that is refused.
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+class RateLimiter {
+
+    // A refused source is told so at most this often, so refusals can't be used to amplify a flood
+    static final long NOTICE_INTERVAL = 1000;
+
+    private static final class Bucket {
+        double tokens;
+        long refilledAt;
+        long noticedAt;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.refilledAt = now;
+        }
+    }
+
+    private final double perMilli;
+    private final int burst;
+    private final int maxSources;
+    private final Map<InetSocketAddress, Bucket> buckets = new ConcurrentHashMap<>();
+    private volatile long prunedAt;
+
+    // A rate of 0 admits everything
+    RateLimiter(double perSecond, int burst, int maxSources) {
+        this.perMilli = perSecond / 1000;
+        this.burst = burst;
+        this.maxSources = maxSources;
+    }
+
+    // Takes a token from source's bucket, returning false if it is empty
+    boolean tryAcquire(InetSocketAddress source) {
+        if (perMilli == 0) return true;
+        long now = System.currentTimeMillis();
+        Bucket bucket = buckets.get(source);
+        if (bucket == null) {
+            // Too many sources to track: forget those that are idle, at most once a second
+            if (buckets.size() >= maxSources) {
+                if (now - prunedAt < 1000) return false;
+                prunedAt = now;
+                prune(now);
+                if (buckets.size() >= maxSources) return false;
+            }
+            bucket = buckets.computeIfAbsent(source, k -> new Bucket(burst, now));
+        }
+        synchronized (bucket) {
+            refill(bucket, now);
+            if (bucket.tokens < 1) return false;
+            bucket.tokens--;
+            return true;
+        }
+    }
+
+    // True if source should be told it was refused, which happens once per NOTICE_INTERVAL
+    boolean shouldNotify(InetSocketAddress source) {
+        long now = System.currentTimeMillis();
+        Bucket bucket = buckets.get(source);
+        if (bucket == null) {
+            // Refused for some other reason than its rate, or rate limiting is off
+            if (buckets.size() >= maxSources) return false;
+            bucket = buckets.computeIfAbsent(source, k -> new Bucket(burst, now));
+        }
+        synchronized (bucket) {
+            if (now - bucket.noticedAt < NOTICE_INTERVAL) return false;
+            bucket.noticedAt = now;
+            return true;
+        }
+    }
+
+    // How long until source has a token again
+    long retryAfter(InetSocketAddress source) {
+        Bucket bucket = buckets.get(source);
+        if (bucket == null || perMilli == 0) return 0;
+        synchronized (bucket) {
+            return (long) Math.ceil(Math.max(0, 1 - bucket.tokens) / perMilli);
+        }
+    }
+
+    // Drops the buckets that have filled up again; a source that comes back starts with a full one anyway
+    private void prune(long now) {
+        buckets.values().removeIf(bucket -> {
+            synchronized (bucket) {
+                refill(bucket, now);
+                return bucket.tokens >= burst;
+            }
+        });
+    }
+
+    private void refill(Bucket bucket, long now) {
+        bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.refilledAt) * perMilli);
+        bucket.refilledAt = now;
+    }
+}
@@ -0,0 +1,54 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Pre-encoded V headers for a node's relay stack.
+// The chain of "V <relay>" headers only changes when the stack does, so it is encoded once
+// with blank transaction IDs; each request copies it, fills in fresh IDs and appends its target and body.
+
+import java.util.List;
+import java.util.function.Supplier;
+
+class RelayHeader {
+
+    final String firstRelay;
+    private final String template;
+    private final int[] txnOffsets;
+
+    private RelayHeader(String firstRelay, String template, int[] txnOffsets) {
+        this.firstRelay = firstRelay;
+        this.template = template;
+        this.txnOffsets = txnOffsets;
+    }
+
+    // relays is ordered from the first relay to the last. Returns null for an empty stack.
+    static RelayHeader build(List<String> relays) {
+        if (relays.isEmpty()) return null;
+        StringBuilder template = new StringBuilder();
+        int[] txnOffsets = new int[relays.size()];
+        for (int i = 0; i < relays.size(); i++) {
+            // The first relay is sent this message, every later relay is named by the one before it
+            if (i > 0) template.append(Node.encodeCRNString(relays.get(i)));
+            txnOffsets[i] = template.length();
+            template.append("__ V ");
+        }
+        return new RelayHeader(relays.get(0), template.toString(), txnOffsets);
+    }
+
+    // The message to send to the first relay so that body reaches target.
+    // outerTxn is the ID the reply will come back with; each inner hop gets its own ID from txns.
+    String wrap(String outerTxn, String target, String body, Supplier<String> txns) {
+        String encodedTarget = Node.encodeCRNString(target);
+        StringBuilder message = new StringBuilder(template.length() + encodedTarget.length() + 3 + body.length());
+        message.append(template);
+        setTxn(message, txnOffsets[0], outerTxn);
+        for (int i = 1; i < txnOffsets.length; i++) {
+            setTxn(message, txnOffsets[i], txns.get());
+        }
+        return message.append(encodedTarget).append(txns.get()).append(' ').append(body).toString();
+    }
+
+    private static void setTxn(StringBuilder message, int offset, String txn) {
+        message.setCharAt(offset, txn.charAt(0));
+        message.setCharAt(offset + 1, txn.charAt(1));
+    }
+}
@@ -0,0 +1,46 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Alternates writes of two values to one key with reads of it, from one of three local nodes.
+// Every read must see the value just written: a stale one means a reply cached for an earlier
+// request under the same transaction ID was replayed in answer to a later one.
+
+import java.net.InetAddress;
+
+public class ReplayTest {
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Node[] nodes = new Node[3];
+        String[] nodeNames = {"N:replayA", "N:replayB", "N:replayC"};
+        int[] ports = {20120, 20121, 20122};
+
+        String localIP = InetAddress.getLocalHost().getHostAddress();
+        for (int i = 0; i < 3; i++) {
+            nodes[i] = new Node();
+            nodes[i].setNodeName(nodeNames[i]);
+            nodes[i].openPort(ports[i]);
+            // Every read goes to the replicas rather than to values this node cached
+            nodes[i].setValueCache(0, 0);
+        }
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                nodes[i].insertDummyNode(nodeNames[j], localIP + ":" + ports[j]);
+            }
+        }
+
+        String key = "D:k";
+        int failedWrites = 0;
+        int staleReads = 0;
+        for (int i = 0; i < iterations; i++) {
+            String value = i % 2 == 0 ? "a" : "b";
+            if (!nodes[0].write(key, value)) failedWrites++;
+            String read = nodes[0].read(key);
+            if (!value.equals(read)) staleReads++;
+        }
+
+        System.out.println(iterations + " writes, " + failedWrites + " failed");
+        System.out.println(iterations + " reads, " + staleReads + " stale");
+        System.out.println(failedWrites == 0 && staleReads == 0 ? "Replay test worked!" : "Replay test failed!");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,274 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Address key/value pairs a node knows about, grouped by their distance from the node.
+// As the spec requires, at most three are kept for each distance. Nodes learned while a bucket
+// is full wait as replacements and take over when a member is evicted.
+// The table can be saved to a snapshot so a restarted node starts out knowing its old peers.
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+class RoutingTable {
+
+    static final int BUCKET_SIZE = 3;
+    private static final long SNAPSHOT_MAGIC = 0x43524e5254533031L; // "CRNRTS01"
+
+    static final class Entry {
+        final String name;
+        final long[] id;
+        volatile String address;
+        // When the node last answered us, 0 if it never has
+        volatile long lastSeen;
+        volatile int failures;
+
+        Entry(String name, long[] id, String address) {
+            this.name = name;
+            this.id = id;
+            this.address = address;
+        }
+    }
+
+    private final long[] selfId;
+    private final Map<String, Entry> byName = new ConcurrentHashMap<>();
+    // buckets[d] holds the nodes at distance d from this node, i.e. sharing 256 - d leading bits with it.
+    // Most are never used, so they are only created when a node first lands in them.
+    private final AtomicReferenceArray<Map<String, Entry>> buckets = new AtomicReferenceArray<>(257);
+    // Most recently learned nodes for each full bucket, newest last. Guarded by the bucket.
+    private final List<ArrayDeque<Entry>> replacements = new ArrayList<>(Collections.nCopies(257, null));
+    // When a lookup last went to each bucket's part of the ID space
+    private final long[] lastLookup = new long[257];
+
+    RoutingTable(long[] selfId) {
+        this.selfId = selfId;
+        Arrays.fill(lastLookup, System.currentTimeMillis());
+    }
+
+    private Map<String, Entry> bucket(int distance) {
+        Map<String, Entry> bucket = buckets.get(distance);
+        if (bucket == null) {
+            buckets.compareAndSet(distance, null, new ConcurrentHashMap<>(4));
+            bucket = buckets.get(distance);
+        }
+        return bucket;
+    }
+
+    private Collection<Entry> entriesAt(int distance) {
+        Map<String, Entry> bucket = buckets.get(distance);
+        return bucket == null ? Collections.emptyList() : bucket.values();
+    }
+
+    // Adds or updates a node. Returns false if its bucket was full and it is only kept as a replacement.
+    boolean put(String name, String address) throws Exception {
+        Entry existing = byName.get(name);
+        if (existing != null) {
+            existing.address = address;
+            return true;
+        }
+        Entry entry = new Entry(name, HashID.computeHashWords(name), address);
+        int d = HashID.distance(selfId, entry.id);
+        Map<String, Entry> bucket = bucket(d);
+        synchronized (bucket) {
+            if (d > 0 && bucket.size() >= BUCKET_SIZE) {
+                if (replacements.get(d) == null) replacements.set(d, new ArrayDeque<>(BUCKET_SIZE + 1));
+                ArrayDeque<Entry> waiting = replacements.get(d);
+                waiting.removeIf(e -> e.name.equals(name));
+                waiting.addLast(entry);
+                if (waiting.size() > BUCKET_SIZE) waiting.removeFirst();
+                return false;
+            }
+            bucket.put(name, entry);
+            byName.put(name, entry);
+        }
+        return true;
+    }
+
+    void putAll(Map<String, String> addresses) throws Exception {
+        for (Map.Entry<String, String> e : addresses.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    // Evicts a node, letting the newest replacement for its bucket take its place
+    void remove(String name) {
+        Entry entry = byName.get(name);
+        if (entry == null) return;
+        int d = HashID.distance(selfId, entry.id);
+        Map<String, Entry> bucket = bucket(d);
+        synchronized (bucket) {
+            if (bucket.remove(name) == null) return;
+            byName.remove(name);
+            ArrayDeque<Entry> waiting = replacements.get(d);
+            Entry replacement = waiting == null ? null : waiting.pollLast();
+            if (replacement != null) {
+                bucket.put(replacement.name, replacement);
+                byName.put(replacement.name, replacement);
+            }
+        }
+    }
+
+    void markAlive(String name) {
+        Entry entry = byName.get(name);
+        if (entry == null) return;
+        entry.lastSeen = System.currentTimeMillis();
+        entry.failures = 0;
+    }
+
+    // Returns how many times in a row the node has now failed to answer
+    int markFailed(String name) {
+        Entry entry = byName.get(name);
+        return entry == null ? 0 : ++entry.failures;
+    }
+
+    // Nodes other than this one that haven't answered since before time
+    List<Entry> unseenSince(long time) {
+        List<Entry> result = new ArrayList<>();
+        for (int d = 1; d <= 256; d++) {
+            for (Entry e : entriesAt(d)) {
+                if (e.lastSeen < time) result.add(e);
+            }
+        }
+        return result;
+    }
+
+    void lookedUp(long[] target) {
+        lastLookup[HashID.distance(selfId, target)] = System.currentTimeMillis();
+    }
+
+    // Distances no lookup has gone to since before time, from the nearest occupied bucket outwards.
+    // Buckets closer than any node we know are almost always empty, so they are not worth refreshing.
+    List<Integer> bucketsNotLookedUpSince(long time) {
+        List<Integer> result = new ArrayList<>();
+        int nearest = 1;
+        while (nearest <= 256 && entriesAt(nearest).isEmpty()) nearest++;
+        for (int d = nearest; d <= 256; d++) {
+            if (lastLookup[d] < time) result.add(d);
+        }
+        return result;
+    }
+
+    // A random ID at the given distance from this node: the same leading 256 - distance bits, then a differing bit
+    long[] randomIdAt(int distance) {
+        long[] id = new long[4];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int bit = 256 - distance;
+        for (int i = 0; i < 4; i++) {
+            int keep = Math.max(0, Math.min(64, bit - i * 64));
+            long mask = keep == 0 ? 0 : keep == 64 ? -1L : -1L << (64 - keep);
+            id[i] = (selfId[i] & mask) | (random.nextLong() & ~mask);
+        }
+        if (distance > 0) {
+            int word = bit / 64;
+            long flip = 1L << (63 - bit % 64);
+            id[word] = (id[word] & ~flip) | (~selfId[word] & flip);
+        }
+        return id;
+    }
+
+    // Saves every node but this one, those that answered most recently first:
+    // magic (8) | count (4), then for each node name length (2) | name | IPv4 address (4) | port (2).
+    // Nodes with an address that is not IPv4 are left out.
+    void writeSnapshot(Path file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (int d = 1; d <= 256; d++) entries.addAll(entriesAt(d));
+        entries.sort(Comparator.comparingLong((Entry e) -> e.lastSeen).reversed());
+
+        ByteBuffer snapshot = ByteBuffer.allocate(12 + entries.size() * (2 + 255 + 6));
+        snapshot.putLong(SNAPSHOT_MAGIC).putInt(0);
+        int count = 0;
+        for (Entry e : entries) {
+            byte[] name = e.name.getBytes(StandardCharsets.UTF_8);
+            String[] address = e.address.split("[.:]");
+            if (name.length > 255 || address.length != 5) continue;
+            try {
+                snapshot.putShort((short) name.length).put(name);
+                for (int i = 0; i < 4; i++) snapshot.put((byte) Integer.parseInt(address[i]));
+                snapshot.putShort((short) Integer.parseInt(address[4]));
+                count++;
+            } catch (NumberFormatException ignored) {
+                // Only dotted IPv4 addresses pass this far, so this would be a corrupt entry
+            }
+        }
+        snapshot.putInt(8, count);
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temporary, Arrays.copyOf(snapshot.array(), snapshot.position()));
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Adds the nodes saved in a snapshot and returns their names.
+    // A missing or corrupt snapshot adds whatever could be read before the problem.
+    List<String> readSnapshot(Path file) {
+        List<String> loaded = new ArrayList<>();
+        if (!Files.exists(file)) return loaded;
+        try {
+            ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (snapshot.getLong() != SNAPSHOT_MAGIC) return loaded;
+            int count = snapshot.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[snapshot.getShort() & 0xffff];
+                snapshot.get(name);
+                String address = (snapshot.get() & 0xff) + "." + (snapshot.get() & 0xff) + "."
+                        + (snapshot.get() & 0xff) + "." + (snapshot.get() & 0xff) + ":" + (snapshot.getShort() & 0xffff);
+                String nodeName = new String(name, StandardCharsets.UTF_8);
+                if (put(nodeName, address)) loaded.add(nodeName);
+            }
+        } catch (Exception e) {
+            System.err.println("Routing snapshot unreadable after " + loaded.size() + " nodes: " + e);
+        }
+        return loaded;
+    }
+
+    String getAddress(String name) {
+        Entry entry = byName.get(name);
+        return entry == null ? null : entry.address;
+    }
+
+    Entry get(String name) {
+        return byName.get(name);
+    }
+
+    Set<String> names() {
+        return Collections.unmodifiableSet(byName.keySet());
+    }
+
+    int size() {
+        return byName.size();
+    }
+
+    // The count entries closest to target, nearest first.
+    // Only the bucket target falls in needs exact distances: every entry in a closer bucket
+    // is exactly as far away as the target is from us, and every entry in a further bucket
+    // is as far away as its bucket.
+    List<Entry> nearest(long[] target, int count) {
+        List<Entry> result = new ArrayList<>(count);
+        int targetBucket = HashID.distance(selfId, target);
+
+        List<Entry> sameBucket = new ArrayList<>(entriesAt(targetBucket));
+        sameBucket.sort(Comparator.comparingInt(e -> HashID.distance(e.id, target)));
+        addUpTo(result, sameBucket, count);
+
+        for (int d = targetBucket - 1; d >= 0 && result.size() < count; d--) {
+            addUpTo(result, entriesAt(d), count);
+        }
+        for (int d = targetBucket + 1; d <= 256 && result.size() < count; d++) {
+            addUpTo(result, entriesAt(d), count);
+        }
+        return result;
+    }
+
+    private static void addUpTo(List<Entry> result, Collection<Entry> entries, int count) {
+        for (Entry e : entries) {
+            if (result.size() >= count) return;
+            result.add(e);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Round trip time estimates per peer, kept the way TCP does (Jacobson/Karels, RFC 6298).
+// Each reply to a request that was never resent updates a smoothed RTT and its variance;
+// the retransmission timeout derived from them doubles every time a peer lets a request time out.
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+class RttEstimator {
+
+    static final long MIN_TIMEOUT = 50;
+    static final long INITIAL_TIMEOUT = 1000;
+    // The CRN-25 resend interval, so no peer waits longer than the spec allows
+    static final long MAX_TIMEOUT = 5000;
+
+    private static final class Peer {
+        double srtt;
+        double rttvar;
+        long timeout = INITIAL_TIMEOUT;
+        boolean sampled;
+    }
+
+    private final Map<InetSocketAddress, Peer> peers = new ConcurrentHashMap<>();
+
+    // How long to wait for a reply from peer before resending
+    long timeout(InetSocketAddress peer) {
+        Peer p = peers.get(peer);
+        if (p == null) return INITIAL_TIMEOUT;
+        synchronized (p) {
+            return p.timeout;
+        }
+    }
+
+    // Records the round trip time of a reply. Only call this for requests that were sent once (Karn's rule).
+    void sample(InetSocketAddress peer, long rttMillis) {
+        Peer p = peers.computeIfAbsent(peer, k -> new Peer());
+        synchronized (p) {
+            if (!p.sampled) {
+                p.srtt = rttMillis;
+                p.rttvar = rttMillis / 2.0;
+                p.sampled = true;
+            } else {
+                p.rttvar = 0.75 * p.rttvar + 0.25 * Math.abs(p.srtt - rttMillis);
+                p.srtt = 0.875 * p.srtt + 0.125 * rttMillis;
+            }
+            p.timeout = clamp((long) Math.ceil(p.srtt + Math.max(4 * p.rttvar, 1)));
+        }
+    }
+
+    // Called when peer failed to reply in time
+    void backoff(InetSocketAddress peer) {
+        Peer p = peers.computeIfAbsent(peer, k -> new Peer());
+        synchronized (p) {
+            p.timeout = clamp(p.timeout * 2);
+        }
+    }
+
+    private static long clamp(long timeout) {
+        return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+    }
+}
@@ -0,0 +1,257 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// An in-memory network for running thousands of nodes in one JVM.
+// Every datagram is delayed by a latency drawn between a minimum and a maximum, may be lost,
+// may be held back further so it overtakes or is overtaken by others, and queues behind the
+// datagrams before it on its link when the link has limited bandwidth.
+// Each link draws from its own random generator seeded from the network's seed, so the same
+// sequence of sends on a link meets the same fate every run.
+//
+// One thread delivers everything, so receivers must be as quick as on a real receive thread.
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+class SimulatedNetwork implements Transport.Factory {
+
+    private static final class Link {
+        final SplittableRandom random;
+        // When the link has finished sending what is already queued on it
+        long busyUntil;
+
+        Link(long seed) {
+            random = new SplittableRandom(seed);
+        }
+    }
+
+    private static final class Datagram implements Comparable<Datagram> {
+        final long deliverAt;
+        final long sequence;
+        final byte[] bytes;
+        final InetSocketAddress from;
+        final InetSocketAddress to;
+
+        Datagram(long deliverAt, long sequence, byte[] bytes, InetSocketAddress from, InetSocketAddress to) {
+            this.deliverAt = deliverAt;
+            this.sequence = sequence;
+            this.bytes = bytes;
+            this.from = from;
+            this.to = to;
+        }
+
+        public int compareTo(Datagram other) {
+            int byTime = Long.compare(deliverAt, other.deliverAt);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final long seed;
+    private final InetAddress host;
+    private volatile long minLatencyNanos;
+    private volatile long maxLatencyNanos;
+    private volatile double lossRate;
+    private volatile double reorderRate;
+    private volatile long reorderDelayNanos;
+    private volatile long bytesPerSecond;
+
+    private final Map<InetSocketAddress, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final Map<Long, Link> links = new ConcurrentHashMap<>();
+    private final PriorityQueue<Datagram> inFlight = new PriorityQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition due = lock.newCondition();
+    private final Thread deliverer;
+    private volatile boolean running = true;
+    private long sequence;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+
+    // Endpoints get this machine's address, as nodes advertise it, with the port they open
+    SimulatedNetwork(long seed) throws UnknownHostException {
+        this.seed = seed;
+        this.host = InetAddress.getLocalHost();
+        deliverer = Thread.ofPlatform().daemon().name("crn-simulated-network").start(this::deliverLoop);
+    }
+
+    SimulatedNetwork latency(long minMillis, long maxMillis) {
+        if (minMillis < 0 || maxMillis < minMillis) throw new IllegalArgumentException("Latency range is invalid");
+        minLatencyNanos = TimeUnit.MILLISECONDS.toNanos(minMillis);
+        maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+        return this;
+    }
+
+    SimulatedNetwork loss(double rate) {
+        if (rate < 0 || rate > 1) throw new IllegalArgumentException("Loss rate must be between 0 and 1");
+        lossRate = rate;
+        return this;
+    }
+
+    // A fraction rate of datagrams is held back for up to extraMillis more
+    SimulatedNetwork reordering(double rate, long extraMillis) {
+        if (rate < 0 || rate > 1 || extraMillis < 0) throw new IllegalArgumentException("Reordering is invalid");
+        reorderRate = rate;
+        reorderDelayNanos = TimeUnit.MILLISECONDS.toNanos(extraMillis);
+        return this;
+    }
+
+    // Bandwidth of each link, from one endpoint to another; 0 means unlimited
+    SimulatedNetwork bandwidth(long bytesPerSecond) {
+        if (bytesPerSecond < 0) throw new IllegalArgumentException("Bandwidth must not be negative");
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    @Override
+    public Transport open(int port, int bufferSize, Transport.Receiver receiver) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        Endpoint endpoint = new Endpoint(address, bufferSize, receiver);
+        if (endpoints.putIfAbsent(address, endpoint) != null) throw new IOException("Port " + port + " is already in use");
+        return endpoint;
+    }
+
+    long sent() {
+        return sent.get();
+    }
+
+    long delivered() {
+        return delivered.get();
+    }
+
+    long lost() {
+        return lost.get();
+    }
+
+    void shutdown() {
+        running = false;
+        deliverer.interrupt();
+    }
+
+    private void transmit(InetSocketAddress from, InetSocketAddress to, byte[] bytes) {
+        sent.incrementAndGet();
+        long key = ((long) from.getPort() << 32) | to.getPort();
+        Link link = links.computeIfAbsent(key, k -> new Link(seed ^ (k * 0x9e3779b97f4a7c15L)));
+        long deliverAt;
+        synchronized (link) {
+            if (link.random.nextDouble() < lossRate) {
+                lost.incrementAndGet();
+                return;
+            }
+            long now = System.nanoTime();
+            long departs = now;
+            if (bytesPerSecond > 0) {
+                departs = Math.max(now, link.busyUntil);
+                link.busyUntil = departs + bytes.length * 1_000_000_000L / bytesPerSecond;
+            }
+            long latency = minLatencyNanos;
+            if (maxLatencyNanos > minLatencyNanos) latency += link.random.nextLong(maxLatencyNanos - minLatencyNanos + 1);
+            if (reorderDelayNanos > 0 && link.random.nextDouble() < reorderRate) {
+                latency += link.random.nextLong(reorderDelayNanos + 1);
+            }
+            deliverAt = departs + latency;
+        }
+        lock.lock();
+        try {
+            inFlight.add(new Datagram(deliverAt, sequence++, bytes, from, to));
+            if (inFlight.peek().deliverAt == deliverAt) due.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void deliverLoop() {
+        while (running) {
+            Datagram next;
+            lock.lock();
+            try {
+                next = inFlight.peek();
+                long wait = next == null ? Long.MAX_VALUE : next.deliverAt - System.nanoTime();
+                if (wait > 0) {
+                    due.awaitNanos(wait);
+                    continue;
+                }
+                inFlight.poll();
+            } catch (InterruptedException e) {
+                continue;
+            } finally {
+                lock.unlock();
+            }
+            Endpoint endpoint = endpoints.get(next.to);
+            if (endpoint == null || !endpoint.open) {
+                lost.incrementAndGet();
+                continue;
+            }
+            delivered.incrementAndGet();
+            try {
+                endpoint.receiver.receive(ByteBuffer.wrap(next.bytes), next.from);
+            } catch (RuntimeException e) {
+                System.err.println("Simulated delivery failed: " + e);
+            }
+        }
+    }
+
+    private final class Endpoint implements Transport {
+        final InetSocketAddress address;
+        final int bufferSize;
+        final Transport.Receiver receiver;
+        final Map<String, InetSocketAddress> addresses = new ConcurrentHashMap<>();
+        volatile boolean open = true;
+
+        Endpoint(InetSocketAddress address, int bufferSize, Transport.Receiver receiver) {
+            this.address = address;
+            this.bufferSize = bufferSize;
+            this.receiver = receiver;
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public InetSocketAddress resolve(String address) {
+            return addresses.computeIfAbsent(address, a -> {
+                int colon = a.lastIndexOf(':');
+                return new InetSocketAddress(a.substring(0, colon), Integer.parseInt(a.substring(colon + 1)));
+            });
+        }
+
+        // Buffers are not pooled: a delivered datagram is a fresh array anyway
+        public ByteBuffer acquire() {
+            return ByteBuffer.allocate(bufferSize);
+        }
+
+        public void release(ByteBuffer buffer) {
+        }
+
+        public boolean send(InetSocketAddress target, CharSequence msg) throws IOException {
+            if (!open) throw new IOException("Transport closed");
+            transmit(address, target, msg.toString().getBytes(StandardCharsets.UTF_8));
+            return true;
+        }
+
+        public boolean send(InetSocketAddress target, ByteBuffer packet) throws IOException {
+            if (!open) throw new IOException("Transport closed");
+            byte[] bytes = new byte[packet.remaining()];
+            packet.get(bytes);
+            transmit(address, target, bytes);
+            return true;
+        }
+
+        public void close() {
+            open = false;
+            endpoints.remove(address, this);
+        }
+    }
+}
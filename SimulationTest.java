@@ -0,0 +1,149 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Runs a large network of nodes in one JVM over a SimulatedNetwork instead of UDP sockets.
+// The nodes share one timer and one set of workers, and every client runs on a virtual thread.
+// Each node only starts out knowing one node started before it. They all join by looking themselves up
+// and writing their address to the nodes found, then look themselves up once more to find those that
+// joined after them, as the routing table maintenance would in time. Then clients on random nodes write pairs and read them back from other random nodes.
+// Finishes with the latencies and lookup lengths summed over every node's metrics, and fails, exiting with 1,
+// unless at least REQUIRED of the pairs were both written and read back.
+//
+// java SimulationTest [nodes] [seed]
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class SimulationTest {
+
+    private static final int FIRST_PORT = 10000;
+    // Joins and client operations in progress at once
+    private static final int CONCURRENCY = 256;
+    private static final int PAIRS = 2000;
+    // Share of the pairs that must be written and then read back for the run to pass
+    private static final double REQUIRED = 0.99;
+
+    public static void main(String[] args) throws Exception {
+        int numberOfNodes = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 2025;
+        if (numberOfNodes < 2 || FIRST_PORT + numberOfNodes > 65536) {
+            System.out.println("Between 2 and " + (65536 - FIRST_PORT) + " nodes");
+            return;
+        }
+
+        SimulatedNetwork network = new SimulatedNetwork(seed)
+                .latency(5, 40)
+                .loss(0.01)
+                .reordering(0.05, 20)
+                .bandwidth(1_000_000);
+        TimerWheel timers = new TimerWheel("crn-sim-timer", 10, 4096);
+        StripedExecutor workers = new StripedExecutor("crn-sim-worker", Runtime.getRuntime().availableProcessors() * 2, 1 << 16);
+
+        Random random = new Random(seed);
+        Node[] nodes = new Node[numberOfNodes];
+        String host = java.net.InetAddress.getLocalHost().getHostAddress();
+        for (int i = 0; i < numberOfNodes; i++) {
+            nodes[i] = new Node();
+            nodes[i].setNodeName("N:sim-" + i);
+            nodes[i].setTransport(network);
+            nodes[i].shareScheduling(timers, workers);
+            nodes[i].openPort(FIRST_PORT + i);
+            if (i > 0) {
+                int known = random.nextInt(i);
+                nodes[i].insertDummyNode("N:sim-" + known, host + ":" + (FIRST_PORT + known));
+            }
+        }
+        System.out.println("Started " + numberOfNodes + " nodes");
+
+        boolean worked;
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            Semaphore permits = new Semaphore(CONCURRENCY);
+            long start = System.nanoTime();
+            for (int pass = 0; pass < 2; pass++) {
+                List<Future<?>> joins = new ArrayList<>();
+                for (Node node : nodes) {
+                    permits.acquire();
+                    joins.add(clients.submit(() -> {
+                        try {
+                            node.bootstrap();
+                        } finally {
+                            permits.release();
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> join : joins) join.get();
+            }
+            System.out.printf("All nodes joined in %.1f s%n", (System.nanoTime() - start) / 1e9);
+
+            AtomicInteger written = new AtomicInteger();
+            start = System.nanoTime();
+            List<Future<?>> writes = new ArrayList<>();
+            for (int i = 0; i < PAIRS; i++) {
+                Node client = nodes[random.nextInt(numberOfNodes)];
+                String key = "D:sim-" + i;
+                permits.acquire();
+                writes.add(clients.submit(() -> {
+                    try {
+                        if (client.write(key, "value " + key)) written.incrementAndGet();
+                    } finally {
+                        permits.release();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> write : writes) write.get();
+            double writeSeconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Wrote %d/%d pairs at %.0f writes/s%n", written.get(), PAIRS, PAIRS / writeSeconds);
+
+            AtomicInteger found = new AtomicInteger();
+            start = System.nanoTime();
+            List<Future<?>> reads = new ArrayList<>();
+            for (int i = 0; i < PAIRS; i++) {
+                Node client = nodes[random.nextInt(numberOfNodes)];
+                String key = "D:sim-" + i;
+                permits.acquire();
+                reads.add(clients.submit(() -> {
+                    try {
+                        if (("value " + key).equals(client.read(key))) found.incrementAndGet();
+                    } finally {
+                        permits.release();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> read : reads) read.get();
+            double readSeconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Read %d/%d pairs back at %.0f reads/s%n", found.get(), PAIRS, PAIRS / readSeconds);
+            worked = written.get() >= REQUIRED * PAIRS && found.get() >= REQUIRED * PAIRS;
+        }
+
+        System.out.println("Datagrams sent " + network.sent() + ", delivered " + network.delivered() + ", lost " + network.lost());
+        NodeMetrics total = new NodeMetrics();
+        for (Node node : nodes) total.add(node.metrics());
+        Map<String, Long> metrics = total.snapshot();
+        for (String operation : List.of("client.write", "client.read", "client.locate")) {
+            System.out.printf("%s: p50 %d ms, p99 %d ms, max %d ms%n", operation, metrics.get(operation + ".p50") / 1000,
+                    metrics.get(operation + ".p99") / 1000, metrics.get(operation + ".max") / 1000);
+        }
+        System.out.printf("Lookups: %d, rounds p50 %d p99 %d, nodes asked p50 %d p99 %d%n", metrics.get("lookup.rounds.count"),
+                metrics.get("lookup.rounds.p50"), metrics.get("lookup.rounds.p99"),
+                metrics.get("lookup.hops.p50"), metrics.get("lookup.hops.p99"));
+        System.out.println("Retransmits " + metrics.get("transmit.retransmits") + ", timeouts " + metrics.get("transmit.timeouts"));
+        // The shared timer and workers stop before the ports close, so nothing queued sends on a closed port
+        timers.stop();
+        workers.shutdown();
+        for (Node node : nodes) node.closePort();
+        network.shutdown();
+        System.out.println(worked ? "Simulation test worked!" : "Simulation test failed: fewer than "
+                + Math.round(REQUIRED * PAIRS) + " pairs written and read back");
+        System.exit(worked ? 0 : 1);
+    }
+}
@@ -0,0 +1,95 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// A fixed set of single-threaded lanes. Tasks with the same stripe always run on the same lane,
+// in the order they were submitted, so work on one key is serialised while different keys run in parallel.
+// Each lane has a bounded queue for urgent tasks, which run first, and one for the rest;
+// offer refuses a task when its queue is full, so a burst is shed instead of queued without limit.
+
+import java.util.ArrayDeque;
+
+class StripedExecutor {
+
+    private final Lane[] lanes;
+
+    StripedExecutor(String name, int stripes, int capacity) {
+        lanes = new Lane[stripes];
+        for (int i = 0; i < stripes; i++) {
+            lanes[i] = new Lane(capacity);
+            Thread t = new Thread(lanes[i], name + "-" + i);
+            t.setDaemon(true);
+            lanes[i].thread = t;
+            t.start();
+        }
+    }
+
+    // Queues a task however full the lane is. For the node's own work, which must not be lost.
+    void execute(int stripe, Runnable task) {
+        laneFor(stripe).add(task, false, Integer.MAX_VALUE);
+    }
+
+    // Queues a task unless its queue is full, returning false if it was refused
+    boolean offer(int stripe, Runnable task, boolean urgent) {
+        Lane lane = laneFor(stripe);
+        return lane.add(task, urgent, lane.capacity);
+    }
+
+    void shutdown() {
+        for (Lane lane : lanes) {
+            lane.stop();
+        }
+    }
+
+    private Lane laneFor(int stripe) {
+        return lanes[(stripe & 0x7fffffff) % lanes.length];
+    }
+
+    private static final class Lane implements Runnable {
+        final int capacity;
+        final ArrayDeque<Runnable> urgent = new ArrayDeque<>();
+        final ArrayDeque<Runnable> normal = new ArrayDeque<>();
+        Thread thread;
+        boolean running = true;
+
+        Lane(int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized boolean add(Runnable task, boolean isUrgent, int limit) {
+            ArrayDeque<Runnable> queue = isUrgent ? urgent : normal;
+            if (!running || queue.size() >= limit) return false;
+            queue.add(task);
+            notify();
+            return true;
+        }
+
+        synchronized void stop() {
+            running = false;
+            urgent.clear();
+            normal.clear();
+            thread.interrupt();
+        }
+
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    while (running && urgent.isEmpty() && normal.isEmpty()) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            // stop() clears running
+                        }
+                    }
+                    if (!running) return;
+                    task = urgent.isEmpty() ? normal.poll() : urgent.poll();
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Task failed: " + e);
+                }
+            }
+        }
+    }
+}
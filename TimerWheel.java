@@ -0,0 +1,110 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Hashed timer wheel for the many short timeouts a node keeps (resends, relayed requests).
+// Scheduling and cancelling are O(1); one thread advances the wheel every tick and runs what is due.
+// Tasks run on that thread, so they must be quick.
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+class TimerWheel {
+
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private volatile boolean cancelled;
+        private volatile boolean expired;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        // True once the task has been run
+        boolean expired() {
+            return expired;
+        }
+    }
+
+    private final long tickMillis;
+    private final List<ArrayDeque<Timeout>> slots;
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final long startTime = now();
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long tick;
+
+    TimerWheel(String name, long tickMillis, int slotCount) {
+        this.tickMillis = tickMillis;
+        this.slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new ArrayDeque<>());
+        }
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task, now() + Math.max(0, delayMillis));
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            long sleep = startTime + (tick + 1) * tickMillis - now();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    if (!running) return;
+                }
+            }
+            // Only this thread touches the slots, new timeouts are moved in here
+            for (Timeout t = incoming.poll(); t != null; t = incoming.poll()) {
+                long due = Math.max(tick, (t.deadline - startTime) / tickMillis);
+                slots.get((int) (due % slots.size())).add(t);
+            }
+            expire(slots.get((int) (tick % slots.size())));
+            tick++;
+        }
+    }
+
+    // Timeouts more than one revolution away stay in the slot until a later pass
+    private void expire(ArrayDeque<Timeout> slot) {
+        long limit = startTime + (tick + 1) * tickMillis;
+        for (Iterator<Timeout> it = slot.iterator(); it.hasNext(); ) {
+            Timeout t = it.next();
+            if (t.cancelled) {
+                it.remove();
+            } else if (t.deadline < limit) {
+                it.remove();
+                t.expired = true;
+                try {
+                    t.task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Timer task failed: " + e);
+                }
+            }
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+}
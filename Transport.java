@@ -0,0 +1,39 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// How a node sends and receives datagrams: over a real UDP socket (DatagramTransport),
+// or through an in-memory network for testing many nodes in one JVM (SimulatedNetwork).
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+interface Transport extends Closeable {
+
+    // Called on the receive thread with a flipped buffer holding one datagram.
+    // The receiver owns the buffer and must hand it back with release() once it is done with it.
+    interface Receiver {
+        void receive(ByteBuffer packet, InetSocketAddress sender);
+    }
+
+    // Opens a transport listening on port; DatagramTransport::new is one
+    interface Factory {
+        Transport open(int port, int bufferSize, Receiver receiver) throws IOException;
+    }
+
+    boolean isOpen();
+
+    // Resolves "ip:port", caching the result for every later send
+    InetSocketAddress resolve(String address);
+
+    ByteBuffer acquire();
+
+    void release(ByteBuffer buffer);
+
+    // Sends msg as UTF-8. Returns false if the datagram was dropped on the way out.
+    boolean send(InetSocketAddress target, CharSequence msg) throws IOException;
+
+    // Sends the remaining bytes of packet
+    boolean send(InetSocketAddress target, ByteBuffer packet) throws IOException;
+}
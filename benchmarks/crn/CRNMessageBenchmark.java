@@ -0,0 +1,63 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Parsing each kind of message the way processMessage does, straight from the datagram buffer.
+
+package crn;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CRNMessageBenchmark {
+
+    @Param({"G", "N", "R", "W", "C", "O"})
+    public String kind;
+
+    private final CRNMessage message = new CRNMessage();
+    private ByteBuffer packet;
+
+    @Setup
+    public void setUp() throws Exception {
+        String hash = HashID.cachedHashID("D:key");
+        String text;
+        switch (kind) {
+            case "G": text = "ab G"; break;
+            case "N": text = "ab N " + hash; break;
+            case "R": text = "ab R 0 D:key "; break;
+            case "W": text = "ab W 0 D:key 6 What's in a name? that which we call a rose "; break;
+            case "C": text = "ab C 0 D:counter 0 41 0 42 "; break;
+            default:
+                text = "ab O 0 N:one 0 10.0.0.1:20110 0 N:two 0 10.0.0.2:20110 0 N:three 0 10.0.0.3:20110 ";
+        }
+        packet = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public Object parse() {
+        packet.rewind();
+        if (!message.wrap(packet)) return null;
+        switch (message.command()) {
+            case 'N':
+                return message.hashID();
+            case 'R':
+                return message.parseStrings(1) ? message.string(0) : null;
+            case 'W':
+                return message.parseStrings(2) ? message.string(1) : null;
+            case 'C':
+                return message.parseStrings(3) ? message.string(2) : null;
+            case 'O':
+                return message.parseAll();
+            default:
+                return message.txnId();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// The cost of sending one datagram over loopback, from a string and from a buffer that is already encoded.
+
+package crn;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final String MESSAGE = "ab W 0 D:key 6 What's in a name? that which we call a rose ";
+
+    private DatagramTransport sender;
+    private DatagramTransport receiver;
+    private InetSocketAddress target;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setUp() throws Exception {
+        receiver = new DatagramTransport(21010, 1024, (packet, from) -> receiver.release(packet));
+        sender = new DatagramTransport(21011, 1024, (packet, from) -> sender.release(packet));
+        target = new InetSocketAddress("127.0.0.1", 21010);
+        encoded = ByteBuffer.wrap(MESSAGE.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        sender.close();
+        receiver.close();
+    }
+
+    @Benchmark
+    public boolean sendString() throws Exception {
+        return sender.send(target, MESSAGE);
+    }
+
+    @Benchmark
+    public boolean sendBuffer() throws Exception {
+        return sender.send(target, encoded.duplicate());
+    }
+}
@@ -0,0 +1,52 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Hashing names and comparing hashIDs, which every lookup and every request for a key does.
+
+package crn;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashIDBenchmark {
+
+    private final String[] names = new String[1024];
+    private final long[][] ids = new long[1024][];
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "D:key-" + i;
+            ids[i] = HashID.computeHashWords(names[i]);
+        }
+    }
+
+    private int nextIndex() {
+        return next = (next + 1) & (names.length - 1);
+    }
+
+    @Benchmark
+    public long[] computeHashWords() throws Exception {
+        return HashID.computeHashWords(names[nextIndex()]);
+    }
+
+    // The same few names over and over, as with node names and hot keys
+    @Benchmark
+    public String cachedHashID() {
+        return HashID.cachedHashID(names[nextIndex() & 15]);
+    }
+
+    @Benchmark
+    public int distance() {
+        int i = nextIndex();
+        return HashID.distance(ids[i], ids[(i + 1) & (ids.length - 1)]);
+    }
+}
@@ -0,0 +1,72 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Reads and writes per second through whole nodes talking over loopback: lookups, quorums and all.
+// Run with -t to see how throughput scales with concurrent clients.
+
+package crn;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    private static final int FIRST_PORT = 21100;
+    private static final int KEYS = 1024;
+
+    @Param({"5"})
+    public int nodeCount;
+
+    // Size of the client node's value cache; 0 sends every read to the replicas
+    @Param({"0", "4096"})
+    public int valueCache;
+
+    private Node[] nodes;
+
+    @Setup
+    public void setUp() throws Exception {
+        String ip = InetAddress.getLocalHost().getHostAddress();
+        nodes = new Node[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i] = new Node();
+            nodes[i].setNodeName("N:bench-" + i);
+            nodes[i].openPort(FIRST_PORT + i);
+        }
+        nodes[0].setValueCache(valueCache, 1000);
+        for (Node node : nodes) {
+            for (int j = 0; j < nodeCount; j++) {
+                node.insertDummyNode("N:bench-" + j, ip + ":" + (FIRST_PORT + j));
+            }
+        }
+        for (int i = 0; i < KEYS; i++) {
+            nodes[0].write("D:bench-" + i, "value " + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Node node : nodes) {
+            node.closePort();
+        }
+    }
+
+    @Benchmark
+    public String read() throws Exception {
+        return nodes[0].read("D:bench-" + ThreadLocalRandom.current().nextInt(KEYS));
+    }
+
+    @Benchmark
+    public boolean write() throws Exception {
+        int key = ThreadLocalRandom.current().nextInt(KEYS);
+        return nodes[0].write("D:bench-" + key, "value " + key);
+    }
+}
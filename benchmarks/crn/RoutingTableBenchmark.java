@@ -0,0 +1,66 @@
+// IN2011 Computer Networks
+// Coursework 2024/2025
+//
+// Finding the nearest nodes to a hashID and learning new nodes, for networks of different sizes.
+// The table keeps at most three nodes per distance, so it holds a few dozen of the networkSize nodes
+// offered to it; what grows with the network is how many arrive at full buckets.
+
+package crn;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingTableBenchmark {
+
+    @Param({"100", "1000", "10000", "100000"})
+    public int networkSize;
+
+    private RoutingTable table;
+    private final long[][] targets = new long[1024][];
+    private String[] newcomers;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        table = new RoutingTable(HashID.computeHashWords("N:self"));
+        table.put("N:self", "127.0.0.1:20110");
+        for (int i = 0; i < networkSize; i++) {
+            table.put("N:node-" + i, "10.0." + (i >> 8 & 0xff) + "." + (i & 0xff) + ":20110");
+        }
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = HashID.computeHashWords("D:key-" + i);
+        }
+        newcomers = new String[1024];
+        for (int i = 0; i < newcomers.length; i++) {
+            newcomers[i] = "N:newcomer-" + i;
+        }
+    }
+
+    private int nextIndex() {
+        return next = (next + 1) & 1023;
+    }
+
+    @Benchmark
+    public List<RoutingTable.Entry> nearest() {
+        return table.nearest(targets[nextIndex()], 3);
+    }
+
+    // A node found by a lookup: almost always one for a full bucket, which only becomes a replacement
+    @Benchmark
+    public boolean putNew() throws Exception {
+        return table.put(newcomers[nextIndex()], "10.1.0.1:20110");
+    }
+
+    @Benchmark
+    public boolean putKnown() throws Exception {
+        return table.put("N:self", "127.0.0.1:20110");
+    }
+}